@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import io.divolte.uaparser.CachingParser.Results;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Asynchronous facade over a {@link CachingParser}, for callers that must not block (such as
+ * event loop threads). Cache hits complete immediately on the calling thread. Cache misses are
+ * parsed on a dedicated, bounded thread pool; concurrent requests for the same (canonical)
+ * input share a single parse.
+ *
+ * When the queue of the pool is full, the {@link OverflowPolicy} determines what happens to
+ * new requests. Close the parser to stop its threads.
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public class AsyncParser implements AutoCloseable {
+    /**
+     * What to do with a request when the parser is saturated.
+     */
+    public enum OverflowPolicy {
+        /** Complete the returned future exceptionally with a {@link RejectedExecutionException}. */
+        REJECT((r, executor) -> {
+            throw new RejectedExecutionException(executor.isShutdown() ? "Parser is closed." : "Parser queue is full.");
+        }),
+        /** Parse on the calling thread, which slows down the caller. */
+        CALLER_RUNS((r, executor) -> {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Parser is closed.");
+            }
+            r.run();
+        });
+
+        private final RejectedExecutionHandler handler;
+
+        private OverflowPolicy(final RejectedExecutionHandler handler) {
+            this.handler = handler;
+        }
+    }
+
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    private final CachingParser parser;
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentMap<String,CompletableFuture<UserAgent>> pendingUserAgents = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,CompletableFuture<Device>> pendingDevices = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,CompletableFuture<OperatingSystem>> pendingOperatingSystems = new ConcurrentHashMap<>();
+
+    /**
+     * @param parser The caching parser to delegate to.
+     * @param threads The number of threads that parse cache misses.
+     * @param queueDepth The maximum number of requests waiting for a thread.
+     * @param overflowPolicy What to do with requests once the queue is full.
+     */
+    public AsyncParser(final CachingParser parser, final int threads, final int queueDepth, final OverflowPolicy overflowPolicy) {
+        this.parser = parser;
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                                               0, TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<>(queueDepth),
+                                               threadFactory(),
+                                               overflowPolicy.handler);
+    }
+
+    private static ThreadFactory threadFactory() {
+        final String prefix = "uaparser-" + POOL_NUMBER.incrementAndGet() + '-';
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return (r) -> {
+            final Thread thread = new Thread(r, prefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public CompletableFuture<UserAgent> parseUserAgent(final String input) {
+        return parse(parser.userAgents(), pendingUserAgents, input);
+    }
+
+    public CompletableFuture<Device> parseDevice(final String input) {
+        return parse(parser.devices(), pendingDevices, input);
+    }
+
+    public CompletableFuture<OperatingSystem> parseOperatingSystem(final String input) {
+        return parse(parser.operatingSystems(), pendingOperatingSystems, input);
+    }
+
+    /**
+     * @return The number of requests waiting for a thread.
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting new cache misses; requests already queued are still parsed.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private <T> CompletableFuture<T> parse(final Results<T> results,
+                                           final ConcurrentMap<String,CompletableFuture<T>> pending,
+                                           final String input) {
+        final String key = parser.getCanonicalizer().canonicalize(input);
+        final T cached = results.getIfPresent(key);
+        if (null != cached) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final CompletableFuture<T> existing = pending.putIfAbsent(key, future);
+        if (null != existing) {
+            return dependent(existing);
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(results.get(key));
+                } catch (final Throwable t) {
+                    future.completeExceptionally(t);
+                } finally {
+                    pending.remove(key, future);
+                }
+            });
+        } catch (final RejectedExecutionException ree) {
+            pending.remove(key, future);
+            future.completeExceptionally(ree);
+        }
+        return dependent(future);
+    }
+
+    /*
+     * Coalesced parses share an internal future. Each caller gets its own dependent future,
+     * so cancelling or completing it cannot affect other callers waiting for the same input.
+     */
+    private static <T> CompletableFuture<T> dependent(final CompletableFuture<T> future) {
+        return future.thenApply(Function.identity());
+    }
+}
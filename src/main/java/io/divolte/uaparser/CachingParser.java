@@ -0,0 +1,472 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import static java.util.concurrent.TimeUnit.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.ToLongFunction;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Parser that caches results, optionally after canonicalizing the input. Results are
+ * parsed from the canonical form of the input, so all inputs with the same canonical form
+ * share a single cache entry.
+ *
+ * Results are cached in process, and optionally in a {@link SharedResultCache} as a second
+ * level. The shared cache is consulted on misses in the in-process cache. Unless the lookup
+ * completes right away, the input is parsed locally in the background at the same time, and
+ * whichever result is available first is used; a slow shared cache thus never costs more
+ * than a local parse. Newly parsed results are written to the shared cache. Failures of the
+ * shared cache are treated as misses, and never fail a parse.
+ *
+ * Results that compute only some fields are cached separately for each set of requested
+ * fields, so each set has its own cache of the configured maximum size.
+ *
+ * When parser data changes, use {@link #update(Parser)} to switch to a new parser while
+ * keeping the cached results that the changed rules cannot affect.
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public class CachingParser implements CachingParserMXBean {
+    private final Parser parser;
+    private final Canonicalizer canonicalizer;
+    @Nullable
+    private final SharedResultCache sharedCache;
+    private final long sharedCacheTimeoutNanos;
+    private final int maximumSize;
+
+    // Results for each set of requested fields; results with all fields are always present.
+    private final ConcurrentMap<Set<UserAgent.Field>,Results<UserAgent>> userAgentProjections = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Set<Device.Field>,Results<Device>> deviceProjections = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Set<OperatingSystem.Field>,Results<OperatingSystem>> operatingSystemProjections = new ConcurrentHashMap<>();
+
+    private final Results<UserAgent> userAgents;
+    private final Results<Device> devices;
+    private final Results<OperatingSystem> operatingSystems;
+
+    /**
+     * Creates a caching parser that uses the input as-is for cache keys.
+     * @param parser The parser to delegate to on cache misses.
+     * @param maximumSize The maximum number of entries in each of the three result caches.
+     */
+    public CachingParser(final Parser parser, final int maximumSize) {
+        this(parser, Canonicalizer.NONE, maximumSize);
+    }
+
+    /**
+     * Creates a caching parser that canonicalizes inputs before using them as cache keys.
+     * @param parser The parser to delegate to on cache misses.
+     * @param canonicalizer The canonicalizer to apply to inputs.
+     * @param maximumSize The maximum number of entries in each of the three result caches.
+     */
+    public CachingParser(final Parser parser, final Canonicalizer canonicalizer, final int maximumSize) {
+        this(parser, canonicalizer, maximumSize, null, 0);
+    }
+
+    /**
+     * Creates a caching parser with a second-level shared cache.
+     * @param parser The parser to delegate to on cache misses.
+     * @param canonicalizer The canonicalizer to apply to inputs.
+     * @param maximumSize The maximum number of entries in each of the three in-process result caches.
+     * @param sharedCache The second-level cache.
+     * @param sharedCacheTimeout How long a lookup may take before it is abandoned. Lookups
+     *                           that are still running when the local parse completes are
+     *                           abandoned as well.
+     */
+    public CachingParser(final Parser parser,
+                         final Canonicalizer canonicalizer,
+                         final int maximumSize,
+                         final SharedResultCache sharedCache,
+                         final Duration sharedCacheTimeout) {
+        this(parser, canonicalizer, maximumSize, sharedCache, sharedCacheTimeout.toNanos());
+    }
+
+    private CachingParser(final Parser parser,
+                          final Canonicalizer canonicalizer,
+                          final int maximumSize,
+                          @Nullable final SharedResultCache sharedCache,
+                          final long sharedCacheTimeoutNanos) {
+        this.parser = parser;
+        this.canonicalizer = canonicalizer;
+        this.sharedCache = sharedCache;
+        this.sharedCacheTimeoutNanos = sharedCacheTimeoutNanos;
+        this.maximumSize = maximumSize;
+        userAgents = userAgentProjection(UserAgent.Field.ALL);
+        devices = deviceProjection(Device.Field.ALL);
+        operatingSystems = operatingSystemProjection(OperatingSystem.Field.ALL);
+    }
+
+    private Results<UserAgent> userAgentProjection(final Set<UserAgent.Field> fields) {
+        return userAgentProjections.computeIfAbsent(copy(fields, UserAgent.Field.class), (f) ->
+            new Results<UserAgent>(ResultWriter.TYPE_USER_AGENT, f, (input, rule) -> parser.parseUserAgent(input, f, rule),
+                                   ResultReader::readUserAgent, (w, ua) -> w.write(ua)));
+    }
+
+    private Results<Device> deviceProjection(final Set<Device.Field> fields) {
+        return deviceProjections.computeIfAbsent(copy(fields, Device.Field.class), (f) ->
+            new Results<Device>(ResultWriter.TYPE_DEVICE, f, (input, rule) -> parser.parseDevice(input, f, rule),
+                                ResultReader::readDevice, (w, d) -> w.write(d)));
+    }
+
+    private Results<OperatingSystem> operatingSystemProjection(final Set<OperatingSystem.Field> fields) {
+        return operatingSystemProjections.computeIfAbsent(copy(fields, OperatingSystem.Field.class), (f) ->
+            new Results<OperatingSystem>(ResultWriter.TYPE_OPERATING_SYSTEM, f, (input, rule) -> parser.parseOperatingSystem(input, f, rule),
+                                         ResultReader::readOperatingSystem, (w, os) -> w.write(os)));
+    }
+
+    private static <F extends Enum<F>> Set<F> copy(final Set<F> fields, final Class<F> type) {
+        // Projections are keyed on a copy, so later changes to the caller's set cannot corrupt the key.
+        final EnumSet<F> copy = EnumSet.noneOf(type);
+        copy.addAll(fields);
+        return Collections.unmodifiableSet(copy);
+    }
+
+    public UserAgent parseUserAgent(final String input) {
+        return userAgents.get(canonicalizer.canonicalize(input));
+    }
+
+    public Device parseDevice(final String input) {
+        return devices.get(canonicalizer.canonicalize(input));
+    }
+
+    public OperatingSystem parseOperatingSystem(final String input) {
+        return operatingSystems.get(canonicalizer.canonicalize(input));
+    }
+
+    /**
+     * Parses the user agent, computing only the requested fields.
+     * @see Parser#parseUserAgent(String, Set)
+     */
+    public UserAgent parseUserAgent(final String input, final Set<UserAgent.Field> fields) {
+        final Results<UserAgent> results = userAgentProjections.get(fields);
+        return (null == results ? userAgentProjection(fields) : results).get(canonicalizer.canonicalize(input));
+    }
+
+    /**
+     * Parses the device, computing only the requested fields.
+     * @see Parser#parseDevice(String, Set)
+     */
+    public Device parseDevice(final String input, final Set<Device.Field> fields) {
+        final Results<Device> results = deviceProjections.get(fields);
+        return (null == results ? deviceProjection(fields) : results).get(canonicalizer.canonicalize(input));
+    }
+
+    /**
+     * Parses the operating system, computing only the requested fields.
+     * @see Parser#parseOperatingSystem(String, Set)
+     */
+    public OperatingSystem parseOperatingSystem(final String input, final Set<OperatingSystem.Field> fields) {
+        final Results<OperatingSystem> results = operatingSystemProjections.get(fields);
+        return (null == results ? operatingSystemProjection(fields) : results).get(canonicalizer.canonicalize(input));
+    }
+
+    /**
+     * Creates a caching parser that uses a new parser, but otherwise has the same configuration
+     * as this one. Cached results are carried over if the rule that produced them is unchanged
+     * in the new parser, and no new or changed rule precedes it. Results for inputs that did
+     * not match any rule are only carried over if the new parser has no new or changed rules
+     * at all.
+     * @param parser The new parser, typically obtained through {@link Parser#update(java.io.InputStream)}.
+     * @return A caching parser for the new parser.
+     */
+    public CachingParser update(final Parser parser) {
+        final CachingParser updated = new CachingParser(parser, canonicalizer, maximumSize, sharedCache, sharedCacheTimeoutNanos);
+        final RuleDiff userAgentDiff = new RuleDiff(this.parser.getUserAgentParser().rules(), parser.getUserAgentParser().rules());
+        final RuleDiff deviceDiff = new RuleDiff(this.parser.getDeviceParser().rules(), parser.getDeviceParser().rules());
+        final RuleDiff operatingSystemDiff = new RuleDiff(this.parser.getOperatingSystemParser().rules(), parser.getOperatingSystemParser().rules());
+        userAgentProjections.forEach((fields, results) -> results.copyTo(updated.userAgentProjection(fields), userAgentDiff));
+        deviceProjections.forEach((fields, results) -> results.copyTo(updated.deviceProjection(fields), deviceDiff));
+        operatingSystemProjections.forEach((fields, results) -> results.copyTo(updated.operatingSystemProjection(fields), operatingSystemDiff));
+        return updated;
+    }
+
+    public Parser getParser() {
+        return parser;
+    }
+
+    public Canonicalizer getCanonicalizer() {
+        return canonicalizer;
+    }
+
+    /**
+     * @return The estimated memory footprint of the underlying parser and the result caches.
+     */
+    @Override
+    public Footprint getFootprint() {
+        return getUserAgentFootprint().plus(getDeviceFootprint())
+                                      .plus(getOperatingSystemFootprint());
+    }
+
+    @Override
+    public Footprint getUserAgentFootprint() {
+        return parser.getUserAgentFootprint()
+                     .plus(footprint(userAgentProjections, (ua) -> estimateBytes(ua.getFamily(), ua.getMajorVersion(), ua.getMinorVersion(), ua.getPatchVersion())));
+    }
+
+    @Override
+    public Footprint getDeviceFootprint() {
+        return parser.getDeviceFootprint()
+                     .plus(footprint(deviceProjections, (d) -> estimateBytes(d.getFamily(), d.getBrand(), d.getModel())));
+    }
+
+    @Override
+    public Footprint getOperatingSystemFootprint() {
+        return parser.getOperatingSystemFootprint()
+                     .plus(footprint(operatingSystemProjections, (os) -> estimateBytes(os.getOperatingSystem(), os.getMajorVersion(), os.getMinorVersion(), os.getPatchVersion(), os.getPatchMinorVersion())));
+    }
+
+    Results<UserAgent> userAgents() {
+        return userAgents;
+    }
+
+    Results<Device> devices() {
+        return devices;
+    }
+
+    Results<OperatingSystem> operatingSystems() {
+        return operatingSystems;
+    }
+
+    private static <T> Footprint footprint(final ConcurrentMap<?,Results<T>> projections, final ToLongFunction<T> resultBytes) {
+        return projections.values()
+                          .stream()
+                          .map((results) -> new Footprint(0, 0, 0, results.cache.size(),
+                                                          results.cache.estimateBytes(Parser::estimateBytes, (c) -> resultBytes.applyAsLong(c.result))))
+                          .reduce(Footprint.EMPTY, Footprint::plus);
+    }
+
+    private static long estimateBytes(@Nullable final String... fields) {
+        // The entry (result reference and rule position) and the result (field and version references),
+        // plus the strings. Strings shared between results are counted each time.
+        long bytes = Parser.OBJECT_HEADER_BYTES + Parser.REFERENCE_BYTES + Integer.BYTES
+                   + Parser.OBJECT_HEADER_BYTES + Parser.REFERENCE_BYTES * (fields.length + 1);
+        for (final String field : fields) {
+            if (null != field) {
+                bytes += Parser.estimateBytes(field);
+            }
+        }
+        return bytes;
+    }
+
+    private static <V> V await(final CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (final CompletionException e) {
+            throw unchecked(e.getCause());
+        }
+    }
+
+    private static RuntimeException unchecked(final Throwable t) {
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return t instanceof RuntimeException ? (RuntimeException) t : new IllegalStateException(t);
+    }
+
+    private interface ParseFunction<T> {
+        T parse(String input, IntConsumer matchingRule);
+    }
+
+    private interface RecordWriter<T> {
+        void write(ResultWriter writer, T result) throws IOException;
+    }
+
+    /**
+     * A cached result, and the position of the rule that produced it.
+     */
+    private static final class Cached<T> {
+        private final T result;
+        private final int rule;
+
+        private Cached(final T result, final int rule) {
+            this.result = result;
+            this.rule = rule;
+        }
+    }
+
+    /**
+     * Cached results of one type and set of requested fields, keyed on canonical input.
+     */
+    final class Results<T> {
+        private final int type;
+        private final int fields;
+        private final LruCache<String,Cached<T>> cache;
+        private final ParseFunction<T> parse;
+        private final Function<ResultReader,T> read;
+        private final RecordWriter<T> write;
+
+        private Results(final int type,
+                        final Set<? extends Enum<?>> fields,
+                        final ParseFunction<T> parse,
+                        final Function<ResultReader,T> read,
+                        final RecordWriter<T> write) {
+            this.type = type;
+            this.fields = fields.stream().mapToInt((f) -> 1 << f.ordinal()).sum();
+            this.cache = new LruCache<>(maximumSize);
+            this.parse = parse;
+            this.read = read;
+            this.write = write;
+        }
+
+        @Nullable
+        T getIfPresent(final String key) {
+            final Cached<T> cached = cache.get(key);
+            return null == cached ? null : cached.result;
+        }
+
+        T get(final String key) {
+            final Cached<T> cached = cache.get(key);
+            if (null != cached) {
+                return cached.result;
+            }
+            final Cached<T> result = null == sharedCache ? parseLocally(key) : getShared(sharedCache, key);
+            cache.put(key, result);
+            return result.result;
+        }
+
+        private Cached<T> parseLocally(final String key) {
+            final int[] rule = { RuleDiff.UNKNOWN };
+            final T result = parse.parse(key, (i) -> rule[0] = i);
+            return new Cached<>(result, rule[0]);
+        }
+
+        private void copyTo(final Results<T> target, final RuleDiff diff) {
+            cache.forEach((key, cached) -> {
+                final int rule = diff.newPosition(cached.rule);
+                if (RuleDiff.UNKNOWN != rule) {
+                    target.cache.put(key, new Cached<>(cached.result, rule));
+                }
+            });
+        }
+
+        private byte[] sharedKey(final String key) {
+            final byte[] input = key.getBytes(StandardCharsets.UTF_8);
+            return ByteBuffer.allocate(Long.BYTES + 2 + input.length)
+                             .putLong(parser.getFingerprint())
+                             .put((byte) type)
+                             .put((byte) fields)
+                             .put(input)
+                             .array();
+        }
+
+        private Cached<T> getShared(final SharedResultCache sharedCache, final String key) {
+            final byte[] sharedKey = sharedKey(key);
+            final CompletableFuture<Optional<byte[]>> lookup = lookup(sharedCache, sharedKey);
+            if (lookup.isDone()) {
+                final T hit = decode(lookup.getNow(Optional.empty()));
+                return null != hit ? new Cached<>(hit, RuleDiff.UNKNOWN) : share(sharedCache, sharedKey, parseLocally(key));
+            }
+
+            // Race the lookup against a local parse. Results from the shared cache come from an unknown rule.
+            final CompletableFuture<Cached<T>> parsed = CompletableFuture.supplyAsync(() -> parseLocally(key));
+            final CompletableFuture<Cached<T>> first = new CompletableFuture<>();
+            lookup.thenAccept((value) -> {
+                final T hit = decode(value);
+                if (null != hit) {
+                    first.complete(new Cached<>(hit, RuleDiff.UNKNOWN));
+                }
+            });
+            parsed.whenComplete((result, t) -> {
+                if (null == t) {
+                    first.complete(result);
+                } else {
+                    first.completeExceptionally(t);
+                }
+            });
+
+            Cached<T> result;
+            try {
+                result = first.get(sharedCacheTimeoutNanos, NANOSECONDS);
+            } catch (final TimeoutException e) {
+                result = await(parsed);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result = await(parsed);
+            } catch (final ExecutionException e) {
+                throw unchecked(e.getCause());
+            }
+            if (RuleDiff.UNKNOWN != result.rule) {
+                // The local parse came first.
+                lookup.cancel(false);
+                return share(sharedCache, sharedKey, result);
+            }
+            // If the local parse has not started yet, it never will.
+            parsed.cancel(false);
+            return result;
+        }
+
+        private CompletableFuture<Optional<byte[]>> lookup(final SharedResultCache sharedCache, final byte[] sharedKey) {
+            try {
+                return sharedCache.get(sharedKey);
+            } catch (final RuntimeException e) {
+                // A failing shared cache is treated as a miss.
+                return CompletableFuture.completedFuture(Optional.empty());
+            }
+        }
+
+        @Nullable
+        private T decode(final Optional<byte[]> value) {
+            try {
+                return value.map((v) -> read.apply(new ResultReader(ByteBuffer.wrap(v)))).orElse(null);
+            } catch (final RuntimeException e) {
+                // Entries that cannot be decoded are treated as a miss, and will be overwritten.
+                return null;
+            }
+        }
+
+        private Cached<T> share(final SharedResultCache sharedCache, final byte[] sharedKey, final Cached<T> parsed) {
+            try {
+                sharedCache.put(sharedKey, encode(parsed.result));
+            } catch (final RuntimeException e) {
+                // A failing shared cache must not fail the parse.
+            }
+            return parsed;
+        }
+
+        private byte[] encode(final T result) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+            try {
+                write.write(new ResultWriter(out, false), result);
+            } catch (final IOException e) {
+                // Cannot happen when writing to memory.
+                throw new UncheckedIOException(e);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.divolte.uaparser;
+
+/**
+ * Management interface for {@link CachingParser} instances. Register a caching parser with
+ * an MBean server to expose the estimated memory footprint of its parser and result caches
+ * as JMX attributes, e.g. to choose cache bounds based on observed sizes:
+ *
+ * <pre>
+ * ManagementFactory.getPlatformMBeanServer()
+ *                  .registerMBean(cachingParser, new ObjectName("io.divolte.uaparser:type=CachingParser"));
+ * </pre>
+ */
+public interface CachingParserMXBean {
+    Footprint getFootprint();
+
+    /**
+     * @return The footprint of the user agent rules and the cached user agent results.
+     */
+    Footprint getUserAgentFootprint();
+
+    /**
+     * @return The footprint of the device rules and the cached device results.
+     */
+    Footprint getDeviceFootprint();
+
+    /**
+     * @return The footprint of the operating system rules and the cached operating system results.
+     */
+    Footprint getOperatingSystemFootprint();
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Rewrites user agent strings into a canonical form before they are used as cache keys.
+ * In-app browsers and SDKs embed volatile segments (build and session identifiers, locales,
+ * screen metrics) in their user agents, which makes otherwise equivalent inputs distinct.
+ * Masking these segments lets equivalent inputs share a single cache entry.
+ *
+ * Canonicalization is only safe if it never changes the parse result. Use
+ * {@link #verify(Parser, Iterable)} to check this on a corpus of real inputs, with the
+ * same rules data that will be used in production.
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public class Canonicalizer {
+    public static final Canonicalizer NONE = new Canonicalizer(Collections.emptyMap());
+
+    private final List<Pattern> patterns;
+    private final List<String> replacements;
+
+    /**
+     * Creates a canonicalizer from rewrite rules, which are applied in iteration order.
+     * @param rules Map of regex to replacement, with the semantics of {@link java.util.regex.Matcher#replaceAll(String)}.
+     */
+    public Canonicalizer(final Map<String,String> rules) {
+        patterns = new ArrayList<>(rules.size());
+        replacements = new ArrayList<>(rules.size());
+        rules.forEach((regex, replacement) -> {
+            patterns.add(CompiledRules.pattern(regex));
+            replacements.add(replacement);
+        });
+    }
+
+    /**
+     * Creates a canonicalizer that masks segments known to vary per device, build or session
+     * in the Facebook, Instagram and WeChat in-app browsers.
+     */
+    public static Canonicalizer defaults() {
+        final Map<String,String> rules = new LinkedHashMap<>();
+        // Facebook: locale, carrier, build revision, screen scale and similar per-device keys.
+        rules.put("(FB(?:LC|CR|RV|SS|OP|AT|DM|BV|CA|PN))/[^;\\]]*", "$1/");
+        // Instagram: trailing locale(s), display properties (scale=, gamut=, ...), screen size and build number.
+        rules.put("(Instagram [\\d.]+ [^(]*\\([^)]*?)(?:; [a-z]{2,3}_[A-Z]{2})(?:; [a-z]{2,3}-[A-Z]{2})?(?:; \\w+=[\\w.]+)*(?:; \\d+x\\d+)?; \\d+\\)", "$1)");
+        // WeChat: network type and language.
+        rules.put(" (?:NetType|Language)/[\\w-]+", "");
+        return new Canonicalizer(rules);
+    }
+
+    public String canonicalize(final String input) {
+        String result = input;
+        for (int i = 0; i < patterns.size(); i++) {
+            // Matcher.replaceAll() returns the input as-is when nothing matches.
+            result = patterns.get(i).matcher(result).replaceAll(replacements.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Checks that canonicalization does not change the parse result for any of the inputs.
+     * @param parser The parser to check against.
+     * @param corpus Sample of user agent strings.
+     * @return The inputs for which the user agent, device or operating system parsed from the
+     *         canonical form differs from the one parsed from the input itself.
+     */
+    public List<String> verify(final Parser parser, final Iterable<String> corpus) {
+        final List<String> mismatches = new ArrayList<>();
+        for (final String input : corpus) {
+            final String canonical = canonicalize(input);
+            if (!canonical.equals(input) &&
+                (!Objects.equals(parser.parseUserAgent(input), parser.parseUserAgent(canonical)) ||
+                 !Objects.equals(parser.parseDevice(input), parser.parseDevice(canonical)) ||
+                 !Objects.equals(parser.parseOperatingSystem(input), parser.parseOperatingSystem(canonical)))) {
+                mismatches.add(input);
+            }
+        }
+        return mismatches;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * JVM-wide registry of compiled parser rules. Identical rules that are loaded by several
+ * {@link Parser} instances (e.g. per-tenant rule files layered over the same base rules, or
+ * old and new parsers during a reload) are compiled once and shared between them.
+ *
+ * Rules are keyed on the kind of rule and the complete rule configuration (regex, flags and
+ * replacements). Entries are only weakly referenced by the registry; a compiled rule stays
+ * registered for as long as at least one parser holds on to it.
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+final class CompiledRules {
+    private static final ConcurrentMap<List<Object>,RuleReference> RULES = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Object> STALE = new ReferenceQueue<>();
+
+    private CompiledRules() {
+        // Prevent instantiation.
+    }
+
+    static Pattern pattern(final String regex) {
+        return intern(Arrays.asList("pattern", regex), () -> Pattern.compile(regex));
+    }
+
+    static <T> T rule(final String kind, final Map<String,String> config, final Function<Map<String,String>,T> compiler) {
+        // Copy the configuration, so later changes to the caller's map cannot corrupt the key.
+        return intern(Arrays.asList(kind, new HashMap<>(config)), () -> compiler.apply(config));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T intern(final List<Object> key, final Supplier<T> compiler) {
+        expungeStaleEntries();
+
+        final RuleReference current = RULES.get(key);
+        final Object shared = current == null ? null : current.get();
+        if (shared != null) {
+            return (T) shared;
+        }
+
+        // Compilation failures propagate to the caller; nothing is registered for them.
+        final T compiled = compiler.get();
+        final RuleReference reference = new RuleReference(key, compiled);
+        for (;;) {
+            final RuleReference existing = RULES.putIfAbsent(key, reference);
+            if (existing == null) {
+                return compiled;
+            }
+            final Object raced = existing.get();
+            if (raced != null) {
+                return (T) raced;
+            }
+            if (RULES.replace(key, existing, reference)) {
+                return compiled;
+            }
+        }
+    }
+
+    private static void expungeStaleEntries() {
+        RuleReference stale;
+        while ((stale = (RuleReference) STALE.poll()) != null) {
+            RULES.remove(stale.key, stale);
+        }
+    }
+
+    private static final class RuleReference extends WeakReference<Object> {
+        private final List<Object> key;
+
+        private RuleReference(final List<Object> key, final Object rule) {
+            super(rule, STALE);
+            this.key = key;
+        }
+    }
+}
@@ -16,7 +16,10 @@
 
 package io.divolte.uaparser;
 
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Objects;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -26,6 +29,17 @@ import javax.annotation.ParametersAreNonnullByDefault;
 public class Device {
     public static final Device OTHER = new Device("Other", null, "Other");
 
+    /**
+     * Fields of a {@link Device} that can be requested when parsing with a projection.
+     */
+    public enum Field {
+        FAMILY,
+        BRAND,
+        MODEL;
+
+        static final Set<Field> ALL = Collections.unmodifiableSet(EnumSet.allOf(Field.class));
+    }
+
     private final String family;
 
     @Nullable
@@ -33,7 +47,7 @@ public class Device {
     @Nullable
     private final String model;
 
-    public Device(final String family, @Nullable final String brand, @Nullable final String model) {
+    public Device(@Nullable final String family, @Nullable final String brand, @Nullable final String model) {
         this.family = family;
         this.brand = brand;
         this.model = model;
@@ -24,10 +24,13 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -43,36 +46,89 @@ public class DeviceParser {
     }
 
     public DeviceParser(List<Map<String,String>> configs, boolean lenient) {
-        this.lenient = lenient;
+        this(lenient);
+        configs.forEach((config) -> add(config, null));
+    }
 
-        patterns = new ArrayList<DeviceParser.DevicePattern>(configs.size());
+    /*
+     * Creates a parser without rules; rules are added while loading parser data.
+     */
+    DeviceParser(boolean lenient) {
+        this.lenient = lenient;
+        patterns = new ArrayList<DeviceParser.DevicePattern>();
         invalidConfigs = lenient ? new ArrayList<Map<String,String>>() : Collections.emptyList();
+    }
 
-        configs.forEach((config) -> {
-            try {
-                patterns.add(prepareParser(config));
-            } catch(InvalidParserDataException ipde) {
-                if (lenient) {
-                    invalidConfigs.add(config);
-                } else {
-                    throw ipde;
-                }
+    /*
+     * Adds a rule. The error, if given, is a structural problem found while loading the rule;
+     * the rule is then invalid and only recorded as such.
+     */
+    void add(final Map<String,String> config, @Nullable final InvalidParserDataException error) {
+        try {
+            if (null != error) {
+                throw error;
+            }
+            patterns.add(CompiledRules.rule("device", config, DeviceParser::prepareParser));
+        } catch(InvalidParserDataException ipde) {
+            if (lenient) {
+                invalidConfigs.add(config);
+            } else {
+                throw ipde;
             }
-        });
+        }
     }
 
     public Device parse(String input) {
-        return patterns.stream()
-                .filter((p) -> p.pattern.asPredicate().test(input))
-                .findFirst().map((p) -> {
-                    final Matcher matcher = p.pattern.matcher(input);
-                    matcher.find();
-                    return new Device(
-                            p.familyReplacer.apply(matcher),
-                            p.brandReplacer.apply(matcher),
-                            p.modelReplacer.apply(matcher)
-                            );
-                }).orElse(Device.OTHER);
+        return parse(input, Device.Field.ALL);
+    }
+
+    /**
+     * Parses the input, but only computes the requested fields. Fields that were not
+     * requested may be null in the result.
+     * @param input The user agent string to parse.
+     * @param fields The fields to compute.
+     * @return The parse result.
+     */
+    public Device parse(String input, Set<Device.Field> fields) {
+        return parse(input, fields, IGNORE_RULE);
+    }
+
+    /*
+     * Parses the input, and passes the index of the matching rule to the given consumer.
+     * If no rule matches, the index passed is the number of rules.
+     */
+    Device parse(String input, Set<Device.Field> fields, IntConsumer matchingRule) {
+        for (int i = 0; i < patterns.size(); i++) {
+            final DevicePattern p = patterns.get(i);
+            final Matcher matcher = p.pattern.matcher(input);
+            if (matcher.find()) {
+                matchingRule.accept(i);
+                return new Device(
+                        project(fields, Device.Field.FAMILY, p.familyReplacer, matcher),
+                        project(fields, Device.Field.BRAND, p.brandReplacer, matcher),
+                        project(fields, Device.Field.MODEL, p.modelReplacer, matcher)
+                        );
+            }
+        }
+        matchingRule.accept(patterns.size());
+        return Device.OTHER;
+    }
+
+    /*
+     * Returns the regex of the rule with the given index, as passed to the consumer of
+     * matching rules, or null if the index denotes that no rule matched.
+     */
+    @Nullable
+    String regex(final int rule) {
+        return rule < patterns.size() ? patterns.get(rule).pattern.pattern() : null;
+    }
+
+    /*
+     * The compiled rules, in order. Identical rules are shared between parsers, so rules
+     * from different parsers can be compared by identity.
+     */
+    List<?> rules() {
+        return Collections.unmodifiableList(patterns);
     }
 
     public List<Map<String,String>> getInvalidConfigurations() {
@@ -86,20 +142,34 @@ public class DeviceParser {
         return lenient;
     }
 
+    /**
+     * @return The estimated memory footprint of the rules of this parser.
+     */
+    public Footprint getFootprint() {
+        return new Footprint(patterns.size(),
+                             patterns.stream().mapToLong((p) -> estimateBytes(p.pattern)).sum(),
+                             patterns.stream()
+                                     .mapToLong((p) -> estimateBytes(p.familyReplacer)
+                                                     + estimateBytes(p.brandReplacer)
+                                                     + estimateBytes(p.modelReplacer))
+                                     .sum(),
+                             0, 0);
+    }
+
     private static DevicePattern prepareParser(Map<String,String> config) {
         final String regex = Optional.ofNullable(config.get("regex"))
                                      .orElseThrow(() -> new Parser.InvalidParserDataException("Device parser data contains entry without regex key."));
-        final Pattern pattern = Pattern.compile(regex);
+        final Pattern pattern = CompiledRules.pattern(regex);
         // Pattern does not expose the group count, so we must create a matcher
         final int groupCount = pattern.matcher("").groupCount();
 
         return new DevicePattern(
                 pattern,
-                replacer(regex, groupCount, config.getOrDefault("device_replacement", "$1")),
+                replacer(regex, groupCount, Optional.ofNullable(config.get("device_replacement")).orElse("$1")),
                 Optional.ofNullable(config.get("brand_replacement"))
                         .map((r) -> replacer(regex, groupCount, r))
                         .orElse((m) -> null),
-                replacer(regex, groupCount, config.getOrDefault("model_replacement", "$1"))
+                replacer(regex, groupCount, Optional.ofNullable(config.get("model_replacement")).orElse("$1"))
                 );
     }
 
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import java.beans.ConstructorProperties;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Estimated memory footprint of a parser, or of one of its parts. All byte counts are
+ * estimates of retained heap, assuming a 64-bit JVM with compressed references. Compiled
+ * rules that are shared between parser instances are counted for every parser that uses them.
+ */
+@ParametersAreNonnullByDefault
+@Immutable
+public final class Footprint {
+    public static final Footprint EMPTY = new Footprint(0, 0, 0, 0, 0);
+
+    private final int ruleCount;
+    private final long patternBytes;
+    private final long replacementBytes;
+    private final long cacheEntries;
+    private final long cacheBytes;
+
+    @ConstructorProperties({"ruleCount", "patternBytes", "replacementBytes", "cacheEntries", "cacheBytes"})
+    public Footprint(final int ruleCount,
+                     final long patternBytes,
+                     final long replacementBytes,
+                     final long cacheEntries,
+                     final long cacheBytes) {
+        this.ruleCount = ruleCount;
+        this.patternBytes = patternBytes;
+        this.replacementBytes = replacementBytes;
+        this.cacheEntries = cacheEntries;
+        this.cacheBytes = cacheBytes;
+    }
+
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    public long getPatternBytes() {
+        return patternBytes;
+    }
+
+    public long getReplacementBytes() {
+        return replacementBytes;
+    }
+
+    public long getCacheEntries() {
+        return cacheEntries;
+    }
+
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public long getTotalBytes() {
+        return patternBytes + replacementBytes + cacheBytes;
+    }
+
+    public Footprint plus(final Footprint other) {
+        return new Footprint(ruleCount + other.ruleCount,
+                             patternBytes + other.patternBytes,
+                             replacementBytes + other.replacementBytes,
+                             cacheEntries + other.cacheEntries,
+                             cacheBytes + other.cacheBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "Footprint [ruleCount=" + ruleCount + ", patternBytes=" + patternBytes + ", replacementBytes=" + replacementBytes + ", cacheEntries=" + cacheEntries + ", cacheBytes=" + cacheBytes + "]";
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * {@link SharedResultCache} that keeps entries in memory, evicting approximately the least
+ * recently used entry when full. It can be shared between several {@link CachingParser}
+ * instances in one process, and serves as a reference implementation for tests.
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public class InMemorySharedResultCache implements SharedResultCache {
+    private final LruCache<ByteBuffer,byte[]> entries;
+
+    public InMemorySharedResultCache(final int maximumSize) {
+        entries = new LruCache<>(maximumSize);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(final byte[] key) {
+        return CompletableFuture.completedFuture(Optional.ofNullable(entries.get(ByteBuffer.wrap(key))));
+    }
+
+    @Override
+    public void put(final byte[] key, final byte[] value) {
+        entries.put(ByteBuffer.wrap(key.clone()), value.clone());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Records a latency histogram since the last reset, and the slowest recent inputs.
+ *
+ * The histogram uses logarithmic buckets with 8 linear sub-buckets each (similar to an HDR
+ * histogram with one significant digit), so recorded values are accurate to within 12.5%.
+ * Recording a value is lock-free; only inputs slower than the fastest of the currently
+ * captured slow inputs take a lock.
+ *
+ * Slow inputs are captured per window of time. Two windows are kept: the current one and
+ * the one before it, so the slowest inputs reported are those of the last one to two
+ * windows. Without this, a single outlier would raise the bar for capturing inputs until
+ * the next reset.
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+final class LatencyRecorder {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    private final int slowInputCapacity;
+    private final long slowInputWindowNanos;
+    @GuardedBy("this")
+    private PriorityQueue<LatencySnapshot.SlowInput> slowInputs;
+    @GuardedBy("this")
+    private PriorityQueue<LatencySnapshot.SlowInput> previousSlowInputs;
+    // Duration an input must exceed to be captured; only raised once the capacity is reached.
+    private volatile long slowInputThreshold;
+    private volatile long windowStart;
+
+    LatencyRecorder(final int slowInputCapacity, final long slowInputWindowNanos) {
+        if (slowInputCapacity < 0) {
+            throw new IllegalArgumentException("Slow input capacity must not be negative: " + slowInputCapacity);
+        }
+        if (slowInputWindowNanos <= 0) {
+            throw new IllegalArgumentException("Slow input window must be positive: " + slowInputWindowNanos);
+        }
+        this.slowInputCapacity = slowInputCapacity;
+        // Capped, so that twice the window cannot overflow.
+        this.slowInputWindowNanos = Math.min(slowInputWindowNanos, Long.MAX_VALUE / 2);
+        this.slowInputs = slowInputQueue();
+        this.previousSlowInputs = slowInputQueue();
+        this.slowInputThreshold = initialThreshold();
+        this.windowStart = System.nanoTime();
+    }
+
+    private PriorityQueue<LatencySnapshot.SlowInput> slowInputQueue() {
+        return new PriorityQueue<>(Math.max(1, slowInputCapacity), Comparator.comparingLong(LatencySnapshot.SlowInput::getDurationNanos));
+    }
+
+    private long initialThreshold() {
+        return 0 == slowInputCapacity ? Long.MAX_VALUE : -1;
+    }
+
+    int getSlowInputCapacity() {
+        return slowInputCapacity;
+    }
+
+    long getSlowInputWindowNanos() {
+        return slowInputWindowNanos;
+    }
+
+    /**
+     * @param input The parsed input.
+     * @param start The value of {@link System#nanoTime()} before parsing.
+     * @param end The value of {@link System#nanoTime()} after parsing.
+     * @param rule The regex of the rule that matched the input, or null if none did.
+     */
+    void record(final String input, final long start, final long end, @Nullable final String rule) {
+        final long nanos = end - start;
+        counts.incrementAndGet(bucket(nanos));
+        long currentMax;
+        while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+            // Retry until we have set the maximum, or another thread has set a higher one.
+        }
+
+        if (nanos > slowInputThreshold || end - windowStart >= slowInputWindowNanos) {
+            synchronized (this) {
+                rotate(end);
+                if (nanos > slowInputThreshold) {
+                    slowInputs.add(new LatencySnapshot.SlowInput(input, nanos, rule));
+                    if (slowInputs.size() > slowInputCapacity) {
+                        slowInputs.remove();
+                    }
+                    if (slowInputs.size() == slowInputCapacity) {
+                        slowInputThreshold = slowInputs.peek().getDurationNanos();
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Starts a new window if the current one has ended.
+     */
+    @GuardedBy("this")
+    private void rotate(final long now) {
+        final long elapsed = now - windowStart;
+        if (elapsed >= slowInputWindowNanos) {
+            final PriorityQueue<LatencySnapshot.SlowInput> previous = previousSlowInputs;
+            previousSlowInputs = slowInputs;
+            slowInputs = previous;
+            slowInputs.clear();
+            if (elapsed >= 2 * slowInputWindowNanos) {
+                // The window that just ended was idle; nothing recent is left.
+                previousSlowInputs.clear();
+            }
+            windowStart = now;
+            slowInputThreshold = initialThreshold();
+        }
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        max.set(0);
+        slowInputs.clear();
+        previousSlowInputs.clear();
+        slowInputThreshold = initialThreshold();
+        windowStart = System.nanoTime();
+    }
+
+    LatencySnapshot snapshot() {
+        return snapshot(System.nanoTime());
+    }
+
+    LatencySnapshot snapshot(final long now) {
+        final long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        final List<LatencySnapshot.SlowInput> slowest;
+        synchronized (this) {
+            rotate(now);
+            slowest = new ArrayList<>(slowInputs);
+            slowest.addAll(previousSlowInputs);
+        }
+        slowest.sort(Comparator.comparingLong(LatencySnapshot.SlowInput::getDurationNanos).reversed());
+        return new LatencySnapshot(snapshot, max.get(), slowest.subList(0, Math.min(slowInputCapacity, slowest.size())));
+    }
+
+    static int bucket(final long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) ((nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return The highest value that is recorded in the given bucket.
+     */
+    static long highestValue(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long subBucket = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Point-in-time view of the parse latencies recorded by a parser with latency tracking
+ * enabled. Percentiles are accurate to within 12.5%.
+ */
+@ParametersAreNonnullByDefault
+@Immutable
+public final class LatencySnapshot {
+    private final long[] counts;
+    private final long count;
+    private final long maxNanos;
+    private final List<SlowInput> slowestInputs;
+
+    LatencySnapshot(final long[] counts, final long maxNanos, final List<SlowInput> slowestInputs) {
+        this.counts = counts;
+        long count = 0;
+        for (final long c : counts) {
+            count += c;
+        }
+        this.count = count;
+        this.maxNanos = maxNanos;
+        this.slowestInputs = Collections.unmodifiableList(slowestInputs);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public long getMedianNanos() {
+        return getValueAtPercentile(50);
+    }
+
+    public long get90thPercentileNanos() {
+        return getValueAtPercentile(90);
+    }
+
+    public long get99thPercentileNanos() {
+        return getValueAtPercentile(99);
+    }
+
+    public long get999thPercentileNanos() {
+        return getValueAtPercentile(99.9);
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100.
+     * @return The latency in nanoseconds at or below which the given percentage of parses completed.
+     */
+    public long getValueAtPercentile(final double percentile) {
+        final long target = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(maxNanos, LatencyRecorder.highestValue(i));
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return The slowest recently parsed inputs, slowest first.
+     */
+    public List<SlowInput> getSlowestInputs() {
+        return slowestInputs;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencySnapshot [count=" + count + ", maxNanos=" + maxNanos + ", medianNanos=" + getMedianNanos() + ", 99thPercentileNanos=" + get99thPercentileNanos() + "]";
+    }
+
+    /**
+     * An input that took long to parse, along with the regex of the rule that matched it.
+     */
+    @Immutable
+    public static final class SlowInput {
+        private final String input;
+        private final long durationNanos;
+        @Nullable
+        private final String rule;
+
+        SlowInput(final String input, final long durationNanos, @Nullable final String rule) {
+            this.input = input;
+            this.durationNanos = durationNanos;
+            this.rule = rule;
+        }
+
+        public String getInput() {
+            return input;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         * @return The regex of the rule that matched, or null if no rule matched.
+         */
+        @Nullable
+        public String getRule() {
+            return rule;
+        }
+
+        @Override
+        public String toString() {
+            return "SlowInput [input=" + input + ", durationNanos=" + durationNanos + ", rule=" + rule + "]";
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Bounded cache that approximates least recently used eviction with the CLOCK algorithm.
+ * Reads and writes do not take locks: a hit only marks its entry as referenced, and on
+ * eviction referenced entries get a second chance while unreferenced ones are removed.
+ *
+ * Under concurrent writes the cache may briefly hold a few more entries than its maximum.
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+final class LruCache<K,V> {
+    // Per entry: the map node (hash, key, value and next) and its table slot, our node, and
+    // the clock queue node (item and next). Keys and values are estimated by the caller.
+    private static final long ENTRY_BYTES = Parser.OBJECT_HEADER_BYTES + Integer.BYTES + 4 * Parser.REFERENCE_BYTES
+                                          + Parser.OBJECT_HEADER_BYTES + Parser.REFERENCE_BYTES + 1
+                                          + Parser.OBJECT_HEADER_BYTES + 2 * Parser.REFERENCE_BYTES;
+
+    private final int maximumSize;
+    private final ConcurrentMap<K,Node<V>> entries = new ConcurrentHashMap<>();
+    // Keys in insertion order, which is the order the clock hand visits them in.
+    private final Queue<K> clock = new ConcurrentLinkedQueue<>();
+
+    LruCache(final int maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("Maximum cache size must not be negative: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+    }
+
+    @Nullable
+    V get(final K key) {
+        final Node<V> node = entries.get(key);
+        if (null == node) {
+            return null;
+        }
+        // Only write when needed, so hot entries don't bounce their cache line between threads.
+        if (!node.referenced) {
+            node.referenced = true;
+        }
+        return node.value;
+    }
+
+    void put(final K key, final V value) {
+        if (0 == maximumSize) {
+            return;
+        }
+        if (null == entries.put(key, new Node<>(value))) {
+            clock.offer(key);
+            evict();
+        }
+    }
+
+    private void evict() {
+        while (entries.size() > maximumSize) {
+            final K key = clock.poll();
+            if (null == key) {
+                return;
+            }
+            final Node<V> node = entries.get(key);
+            if (null != node && node.referenced) {
+                node.referenced = false;
+                clock.offer(key);
+            } else {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Visits all entries, roughly from least to most recently inserted or used.
+     */
+    void forEach(final BiConsumer<K,V> action) {
+        for (final K key : clock) {
+            final Node<V> node = entries.get(key);
+            if (null != node) {
+                action.accept(key, node.value);
+            }
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long estimateBytes(final ToLongFunction<K> keyBytes, final ToLongFunction<V> valueBytes) {
+        return entries.entrySet()
+                      .stream()
+                      .mapToLong((e) -> ENTRY_BYTES + keyBytes.applyAsLong(e.getKey()) + valueBytes.applyAsLong(e.getValue().value))
+                      .sum();
+    }
+
+    private static final class Node<V> {
+        private final V value;
+        private volatile boolean referenced;
+
+        private Node(final V value) {
+            this.value = value;
+        }
+    }
+}
@@ -16,9 +16,10 @@
 
 package io.divolte.uaparser;
 
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Objects;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -26,6 +27,19 @@ import javax.annotation.ParametersAreNonnullByDefault;
 @ParametersAreNonnullByDefault
 public class OperatingSystem {
     public static final OperatingSystem OTHER = new OperatingSystem("Other", null, null, null, null);
+
+    /**
+     * Fields of a {@link OperatingSystem} that can be requested when parsing with a projection.
+     */
+    public enum Field {
+        OPERATING_SYSTEM,
+        MAJOR_VERSION,
+        MINOR_VERSION,
+        PATCH_VERSION,
+        PATCH_MINOR_VERSION;
+
+        static final Set<Field> ALL = Collections.unmodifiableSet(EnumSet.allOf(Field.class));
+    }
     private final String operatingSystem;
 
     @Nullable
@@ -37,7 +51,11 @@ public class OperatingSystem {
     @Nullable
     private final String patchMinorVersion;
 
-    public OperatingSystem(String operatingSystem,
+    // Not part of equals() and hashCode(); derived from the version fields.
+    @Nullable
+    private Version version;
+
+    public OperatingSystem(@Nullable String operatingSystem,
                            @Nullable String majorVersion,
                            @Nullable String minorVersion,
                            @Nullable String patchVersion,
@@ -69,10 +87,20 @@ public class OperatingSystem {
         return patchMinorVersion;
     }
 
+    /**
+     * @return The version, parsed on first use and cached afterwards.
+     */
+    public Version getVersion() {
+        // Racy single-check: Version is immutable, so at worst it is parsed more than once.
+        Version result = version;
+        if (null == result) {
+            version = result = Version.of(majorVersion, minorVersion, patchVersion, patchMinorVersion);
+        }
+        return result;
+    }
+
     public String makeVersionString() {
-        return Stream.of(majorVersion, minorVersion, patchVersion, patchMinorVersion)
-                .filter((s) -> s != null)
-                .collect(Collectors.joining("."));
+        return getVersion().toString();
     }
 
     @Override
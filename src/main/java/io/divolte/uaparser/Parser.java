@@ -17,32 +17,45 @@
 package io.divolte.uaparser;
 
 import static java.lang.Integer.*;
-import static java.util.Collections.*;
 
 import java.io.InputStream;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.ThreadSafe;
 
-import org.yaml.snakeyaml.Yaml;
-
 /**
- * Main parser implementation. Parser instances are stateless; after construction it is safe
+ * Main parser implementation. Parser instances are stateless (apart from optional latency
+ * statistics, see {@link #withLatencyTracking(int)}); after construction it is safe
  * to use instances from multiple threads concurrently.
  */
 @ParametersAreNonnullByDefault
 @ThreadSafe
-public class Parser {
+public class Parser implements ParserMXBean {
+    public static final Duration DEFAULT_SLOW_INPUT_WINDOW = Duration.ofMinutes(1);
+
     private final UserAgentParser userAgentParser;
     private final DeviceParser deviceParser;
     private final OperatingSystemParser operatingSystemParser;
+    private final long fingerprint;
+
+    @Nullable
+    private final LatencyRecorder userAgentLatency;
+    @Nullable
+    private final LatencyRecorder deviceLatency;
+    @Nullable
+    private final LatencyRecorder operatingSystemLatency;
 
     /**
      * Creates a Parser instance based on the the given data file as InputStream. This parser
@@ -62,25 +75,203 @@ public class Parser {
      * @param lenient When true, the parser instance will be lenient in presence of invalid configuration.
      */
     public Parser(final InputStream data, final boolean lenient) {
-        Yaml yaml = new Yaml();
-        @SuppressWarnings("unchecked")
-        Map<String,List<Map<String,String>>> regexes = yaml.loadAs(data, Map.class);
+        final MessageDigest digest = sha256();
+        final UserAgentParser userAgentParser = new UserAgentParser(lenient);
+        final DeviceParser deviceParser = new DeviceParser(lenient);
+        final OperatingSystemParser operatingSystemParser = new OperatingSystemParser(lenient);
+
+        // Rules are compiled as they are read, instead of after loading the whole document.
+        RulesLoader.load(new DigestInputStream(data, digest), (section, config, error) -> {
+            switch (section) {
+            case "user_agent_parsers":
+                userAgentParser.add(config, error);
+                break;
+            case "device_parsers":
+                deviceParser.add(config, error);
+                break;
+            case "os_parsers":
+                operatingSystemParser.add(config, error);
+                break;
+            default:
+                // Unknown sections are ignored.
+                break;
+            }
+        });
+
+        this.userAgentParser = userAgentParser;
+        this.deviceParser = deviceParser;
+        this.operatingSystemParser = operatingSystemParser;
+        fingerprint = ByteBuffer.wrap(digest.digest()).getLong();
+        userAgentLatency = null;
+        deviceLatency = null;
+        operatingSystemLatency = null;
+    }
+
+    private Parser(final Parser parser, final int slowInputCapacity, final long slowInputWindowNanos) {
+        userAgentParser = parser.userAgentParser;
+        deviceParser = parser.deviceParser;
+        operatingSystemParser = parser.operatingSystemParser;
+        fingerprint = parser.fingerprint;
+        userAgentLatency = new LatencyRecorder(slowInputCapacity, slowInputWindowNanos);
+        deviceLatency = new LatencyRecorder(slowInputCapacity, slowInputWindowNanos);
+        operatingSystemLatency = new LatencyRecorder(slowInputCapacity, slowInputWindowNanos);
+    }
+
+    /**
+     * Creates a parser that uses the same rules as this one, but records the latency of calls
+     * to its parse methods, along with the slowest inputs for each kind of result. Slow inputs
+     * are captured in windows of {@link #DEFAULT_SLOW_INPUT_WINDOW}.
+     * @param slowInputCapacity The number of slowest inputs to capture per kind of result.
+     * @return A parser with latency tracking enabled.
+     */
+    public Parser withLatencyTracking(final int slowInputCapacity) {
+        return withLatencyTracking(slowInputCapacity, DEFAULT_SLOW_INPUT_WINDOW);
+    }
+
+    /**
+     * Creates a parser that uses the same rules as this one, but records the latency of calls
+     * to its parse methods, along with the slowest recent inputs for each kind of result.
+     * Calls that compute only some fields are recorded along with those that compute all.
+     * @param slowInputCapacity The number of slowest inputs to capture per kind of result.
+     * @param slowInputWindow How long captured slow inputs are kept. Slow inputs are reported
+     *                        for between one and two windows after they were parsed.
+     * @return A parser with latency tracking enabled.
+     */
+    public Parser withLatencyTracking(final int slowInputCapacity, final Duration slowInputWindow) {
+        return new Parser(this, slowInputCapacity, slowInputWindow.toNanos());
+    }
 
-        userAgentParser = new UserAgentParser(regexes.getOrDefault("user_agent_parsers", emptyList()), lenient);
-        deviceParser = new DeviceParser(regexes.getOrDefault("device_parsers", emptyList()), lenient);
-        operatingSystemParser = new OperatingSystemParser(regexes.getOrDefault("os_parsers", emptyList()), lenient);
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
     }
 
     public UserAgent parseUserAgent(String input) {
-        return userAgentParser.parse(input);
+        return parseUserAgent(input, IGNORE_RULE);
+    }
+
+    UserAgent parseUserAgent(String input, IntConsumer matchingRule) {
+        return parseUserAgent(input, UserAgent.Field.ALL, matchingRule);
+    }
+
+    UserAgent parseUserAgent(String input, Set<UserAgent.Field> fields, IntConsumer matchingRule) {
+        if (null == userAgentLatency) {
+            return userAgentParser.parse(input, fields, matchingRule);
+        }
+        final int[] rule = new int[1];
+        final long start = System.nanoTime();
+        final UserAgent result = userAgentParser.parse(input, fields, (i) -> {
+            rule[0] = i;
+            matchingRule.accept(i);
+        });
+        userAgentLatency.record(input, start, System.nanoTime(), userAgentParser.regex(rule[0]));
+        return result;
     }
 
     public Device parseDevice(String input) {
-        return deviceParser.parse(input);
+        return parseDevice(input, IGNORE_RULE);
+    }
+
+    Device parseDevice(String input, IntConsumer matchingRule) {
+        return parseDevice(input, Device.Field.ALL, matchingRule);
+    }
+
+    Device parseDevice(String input, Set<Device.Field> fields, IntConsumer matchingRule) {
+        if (null == deviceLatency) {
+            return deviceParser.parse(input, fields, matchingRule);
+        }
+        final int[] rule = new int[1];
+        final long start = System.nanoTime();
+        final Device result = deviceParser.parse(input, fields, (i) -> {
+            rule[0] = i;
+            matchingRule.accept(i);
+        });
+        deviceLatency.record(input, start, System.nanoTime(), deviceParser.regex(rule[0]));
+        return result;
     }
 
     public OperatingSystem parseOperatingSystem(String input) {
-        return operatingSystemParser.parse(input);
+        return parseOperatingSystem(input, IGNORE_RULE);
+    }
+
+    OperatingSystem parseOperatingSystem(String input, IntConsumer matchingRule) {
+        return parseOperatingSystem(input, OperatingSystem.Field.ALL, matchingRule);
+    }
+
+    OperatingSystem parseOperatingSystem(String input, Set<OperatingSystem.Field> fields, IntConsumer matchingRule) {
+        if (null == operatingSystemLatency) {
+            return operatingSystemParser.parse(input, fields, matchingRule);
+        }
+        final int[] rule = new int[1];
+        final long start = System.nanoTime();
+        final OperatingSystem result = operatingSystemParser.parse(input, fields, (i) -> {
+            rule[0] = i;
+            matchingRule.accept(i);
+        });
+        operatingSystemLatency.record(input, start, System.nanoTime(), operatingSystemParser.regex(rule[0]));
+        return result;
+    }
+
+    /**
+     * Parses the user agent, computing only the requested fields. Replacements are not
+     * evaluated for fields that are not requested; these may be null in the result,
+     * regardless of what a full parse would return.
+     * A version built from the result, e.g. with {@code getVersion()}, only reflects the
+     * requested version fields.
+     * @see CachingParser#parseUserAgent(String, Set)
+     */
+    public UserAgent parseUserAgent(String input, Set<UserAgent.Field> fields) {
+        return parseUserAgent(input, fields, IGNORE_RULE);
+    }
+
+    /**
+     * Parses the device, computing only the requested fields. Replacements are not
+     * evaluated for fields that are not requested; these may be null in the result,
+     * regardless of what a full parse would return.
+     * @see CachingParser#parseDevice(String, Set)
+     */
+    public Device parseDevice(String input, Set<Device.Field> fields) {
+        return parseDevice(input, fields, IGNORE_RULE);
+    }
+
+    /**
+     * Parses the operating system, computing only the requested fields. Replacements are not
+     * evaluated for fields that are not requested; these may be null in the result,
+     * regardless of what a full parse would return.
+     * A version built from the result, e.g. with {@code getVersion()}, only reflects the
+     * requested version fields.
+     * @see CachingParser#parseOperatingSystem(String, Set)
+     */
+    public OperatingSystem parseOperatingSystem(String input, Set<OperatingSystem.Field> fields) {
+        return parseOperatingSystem(input, fields, IGNORE_RULE);
+    }
+
+    /**
+     * @return A fingerprint of the parser data this parser was created from. Parsers created
+     *         from identical data have the same fingerprint.
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Creates a parser from new parser data, reusing the compiled rules of this parser for
+     * rules that are unchanged. The new parser is lenient if this one is, and tracks latency
+     * if this one does.
+     * @param data InputStream that reads a parser data file in Yaml format.
+     * @return A parser for the new data.
+     * @see CachingParser#update(Parser)
+     */
+    public Parser update(final InputStream data) {
+        // Loading while this parser is reachable guarantees that unchanged rules are shared.
+        final Parser parser = new Parser(data, userAgentParser.isLenient());
+        return null == userAgentLatency
+                ? parser
+                : new Parser(parser, userAgentLatency.getSlowInputCapacity(), userAgentLatency.getSlowInputWindowNanos());
     }
 
     public UserAgentParser getUserAgentParser() {
@@ -95,6 +286,52 @@ public class Parser {
         return operatingSystemParser;
     }
 
+    @Override
+    public Footprint getFootprint() {
+        return getUserAgentFootprint().plus(getDeviceFootprint())
+                                      .plus(getOperatingSystemFootprint());
+    }
+
+    @Override
+    public Footprint getUserAgentFootprint() {
+        return userAgentParser.getFootprint();
+    }
+
+    @Override
+    public Footprint getDeviceFootprint() {
+        return deviceParser.getFootprint();
+    }
+
+    @Override
+    public Footprint getOperatingSystemFootprint() {
+        return operatingSystemParser.getFootprint();
+    }
+
+    @Override
+    @Nullable
+    public LatencySnapshot getUserAgentLatency() {
+        return null == userAgentLatency ? null : userAgentLatency.snapshot();
+    }
+
+    @Override
+    @Nullable
+    public LatencySnapshot getDeviceLatency() {
+        return null == deviceLatency ? null : deviceLatency.snapshot();
+    }
+
+    @Override
+    @Nullable
+    public LatencySnapshot getOperatingSystemLatency() {
+        return null == operatingSystemLatency ? null : operatingSystemLatency.snapshot();
+    }
+
+    @Override
+    public void resetLatency() {
+        Stream.of(userAgentLatency, deviceLatency, operatingSystemLatency)
+              .filter((r) -> null != r)
+              .forEach(LatencyRecorder::reset);
+    }
+
     public static final class InvalidParserDataException extends RuntimeException {
         private static final long serialVersionUID = -8450027246917077146L;
 
@@ -103,6 +340,13 @@ public class Parser {
         }
     }
 
+    static final IntConsumer IGNORE_RULE = (i) -> {};
+
+    @Nullable
+    static <F extends Enum<F>> String project(final Set<F> fields, final F field, final Function<Matcher,String> replacer, final Matcher matcher) {
+        return fields.contains(field) ? replacer.apply(matcher) : null;
+    }
+
     static Function<Matcher,String> replacer(final String regex, final int groupCount, final String replacement) {
         final Pattern placeholderPattern = Pattern.compile("^\\$(\\d)$");
 
@@ -111,22 +355,79 @@ public class Parser {
          * clever lookaraound trick to make split also return the delimiters.
          */
         final String[] parts = replacement.split("(?:(?=\\$\\d)|(?<=\\$\\d))");
+        final int[] groups = new int[parts.length];
 
-        @SuppressWarnings("unchecked") //Generic types and arrays never really go together
-        final Function<Matcher,String>[] partReplacers = Stream.of(parts).<Function<Matcher,String>>map((part) -> {
-            final Matcher phMatcher = placeholderPattern.matcher(part);
+        for (int i = 0; i < parts.length; i++) {
+            final Matcher phMatcher = placeholderPattern.matcher(parts[i]);
             if (phMatcher.matches()) {
                 final int group = parseInt(phMatcher.group(1));
                 if (group > groupCount) {
                     throw new InvalidParserDataException(String.format("Replacement '%s' uses a group not captured in regex '%s'.", replacement, regex));
                 }
-                return (m) -> m.group(group);
+                groups[i] = group;
+                parts[i] = null;
             } else {
-                return (m) -> part;
+                groups[i] = -1;
             }
-        }).toArray((s) -> new Function[s]);
+        }
 
-        return (m) -> Stream.of(partReplacers).map((r) -> r.apply(m)).collect(Collectors.joining());
+        return new Replacer(parts, groups);
+    }
+
+    /*
+     * Rough estimates of retained heap, assuming a 64-bit JVM with compressed references.
+     * Pattern does not expose its internal node graph, so we assume a fixed overhead and
+     * a number of nodes proportional to the length of the regex.
+     */
+    static final int OBJECT_HEADER_BYTES = 16;
+    static final int REFERENCE_BYTES = 4;
+    private static final int PATTERN_BYTES = 128;
+    private static final int PATTERN_BYTES_PER_CHAR = 48;
+    private static final int LAMBDA_BYTES = 16;
+
+    static long estimateBytes(final String string) {
+        return OBJECT_HEADER_BYTES + 8 + OBJECT_HEADER_BYTES + 2L * string.length();
+    }
+
+    static long estimateBytes(final Pattern pattern) {
+        // The source of the regex is retained twice: as given, and in normalized form.
+        return PATTERN_BYTES + PATTERN_BYTES_PER_CHAR * pattern.pattern().length() + 2 * estimateBytes(pattern.pattern());
+    }
+
+    static long estimateBytes(final Function<Matcher,String> replacer) {
+        return replacer instanceof Replacer ? ((Replacer)replacer).estimateBytes() : LAMBDA_BYTES;
     }
-}
 
+    private static final class Replacer implements Function<Matcher,String> {
+        // Literal parts of the replacement; null where a group is substituted instead.
+        private final String[] parts;
+        private final int[] groups;
+
+        private Replacer(final String[] parts, final int[] groups) {
+            this.parts = parts;
+            this.groups = groups;
+        }
+
+        @Override
+        public String apply(final Matcher m) {
+            final StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < parts.length; i++) {
+                // Appending a null group yields "null", as joining a stream of parts used to.
+                builder.append(null == parts[i] ? m.group(groups[i]) : parts[i]);
+            }
+            return builder.toString();
+        }
+
+        private long estimateBytes() {
+            long bytes = OBJECT_HEADER_BYTES + 2 * REFERENCE_BYTES
+                       + OBJECT_HEADER_BYTES + (long) REFERENCE_BYTES * parts.length
+                       + OBJECT_HEADER_BYTES + 4L * groups.length;
+            for (final String part : parts) {
+                if (null != part) {
+                    bytes += Parser.estimateBytes(part);
+                }
+            }
+            return bytes;
+        }
+    }
+}
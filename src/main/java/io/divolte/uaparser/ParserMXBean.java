@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+/**
+ * Management interface for {@link Parser} instances. Register a parser with an MBean server
+ * to expose its estimated memory footprint and, if latency tracking is enabled, its parse
+ * latencies as JMX attributes:
+ *
+ * <pre>
+ * ManagementFactory.getPlatformMBeanServer()
+ *                  .registerMBean(parser, new ObjectName("io.divolte.uaparser:type=Parser"));
+ * </pre>
+ */
+public interface ParserMXBean {
+    Footprint getFootprint();
+
+    Footprint getUserAgentFootprint();
+
+    Footprint getDeviceFootprint();
+
+    Footprint getOperatingSystemFootprint();
+
+    /**
+     * @return The latencies of parsing user agents, or null if latency tracking is not enabled.
+     */
+    LatencySnapshot getUserAgentLatency();
+
+    /**
+     * @return The latencies of parsing devices, or null if latency tracking is not enabled.
+     */
+    LatencySnapshot getDeviceLatency();
+
+    /**
+     * @return The latencies of parsing operating systems, or null if latency tracking is not enabled.
+     */
+    LatencySnapshot getOperatingSystemLatency();
+
+    /**
+     * Clears recorded latencies and captured slow inputs.
+     */
+    void resetLatency();
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import static io.divolte.uaparser.ResultWriter.*;
+import static java.nio.charset.StandardCharsets.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Reads parse results written by a {@link ResultWriter}.
+ *
+ * Strings are decoded straight from the buffer, without intermediate copies when the buffer
+ * is backed by an array. Strings read through a dictionary reference are not decoded at all;
+ * the instance that was read earlier is returned again.
+ *
+ * Data that was not written by a {@link ResultWriter}, or that is truncated, causes a
+ * {@link MalformedResultException}; the reader is unusable afterwards.
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+public class ResultReader {
+    private final ByteBuffer buffer;
+    @Nullable
+    private final List<String> dictionary;
+
+    /**
+     * @param buffer The buffer to read from, starting at its position.
+     * @throws MalformedResultException When the buffer does not start with a valid header.
+     */
+    public ResultReader(final ByteBuffer buffer) {
+        this.buffer = buffer;
+        final int magic = readByte();
+        final int version = readByte();
+        if (MAGIC != magic || FORMAT_VERSION != version) {
+            throw new MalformedResultException(String.format("Unsupported header: magic %x, format version %d.", magic, version));
+        }
+        dictionary = (readByte() & FLAG_DICTIONARY) != 0 ? new ArrayList<>() : null;
+    }
+
+    public boolean hasNext() {
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * @return The type of the next record: {@link UserAgent}, {@link Device} or {@link OperatingSystem}.
+     */
+    public Class<?> peekType() {
+        if (!buffer.hasRemaining()) {
+            throw new MalformedResultException("No more records.");
+        }
+        final int type = buffer.get(buffer.position());
+        switch (type) {
+        case TYPE_USER_AGENT:
+            return UserAgent.class;
+        case TYPE_DEVICE:
+            return Device.class;
+        case TYPE_OPERATING_SYSTEM:
+            return OperatingSystem.class;
+        default:
+            throw new MalformedResultException("Unknown record type: " + type);
+        }
+    }
+
+    public UserAgent readUserAgent() {
+        expect(TYPE_USER_AGENT);
+        return new UserAgent(readName(), readLiteral(), readLiteral(), readLiteral());
+    }
+
+    public Device readDevice() {
+        expect(TYPE_DEVICE);
+        return new Device(readName(), readName(), readName());
+    }
+
+    public OperatingSystem readOperatingSystem() {
+        expect(TYPE_OPERATING_SYSTEM);
+        return new OperatingSystem(readName(), readLiteral(), readLiteral(), readLiteral(), readLiteral());
+    }
+
+    private void expect(final int type) {
+        final int actual = readByte();
+        if (type != actual) {
+            throw new MalformedResultException(String.format("Expected record of type %d, found %d.", type, actual));
+        }
+    }
+
+    @Nullable
+    private String readName() {
+        final int header = readVarint();
+        if ((header & 1) != 0) {
+            if (null == dictionary) {
+                throw new MalformedResultException("Dictionary reference in stream without dictionary.");
+            }
+            final int reference = header >>> 1;
+            if (reference >= dictionary.size()) {
+                throw new MalformedResultException(String.format("Dictionary reference %d out of range; dictionary has %d entries.", reference, dictionary.size()));
+            }
+            return dictionary.get(reference);
+        }
+        final String name = readLiteral(header);
+        if (null != name && null != dictionary && dictionary.size() < MAXIMUM_DICTIONARY_SIZE) {
+            dictionary.add(name);
+        }
+        return name;
+    }
+
+    @Nullable
+    private String readLiteral() {
+        final int header = readVarint();
+        if ((header & 1) != 0) {
+            throw new MalformedResultException("Dictionary reference in a field that is always written literally.");
+        }
+        return readLiteral(header);
+    }
+
+    @Nullable
+    private String readLiteral(final int header) {
+        if (0 == header) {
+            return null;
+        }
+        final int length = (header >>> 1) - 1;
+        if (length < 0 || length > buffer.remaining()) {
+            throw new MalformedResultException(String.format("Invalid string length %d; %d bytes remaining.", length, buffer.remaining()));
+        }
+        final String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            final byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, UTF_8);
+        }
+        return value;
+    }
+
+    private int readVarint() {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new MalformedResultException("Malformed varint.");
+    }
+
+    private int readByte() {
+        if (!buffer.hasRemaining()) {
+            throw new MalformedResultException("Unexpected end of data.");
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    /**
+     * Thrown when data cannot be read because it is malformed or truncated.
+     */
+    public static final class MalformedResultException extends IllegalStateException {
+        private static final long serialVersionUID = 4260271964125624378L;
+
+        public MalformedResultException(final String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import static java.nio.charset.StandardCharsets.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Writes parse results in a compact binary format, to be read back by a {@link ResultReader}.
+ *
+ * A stream starts with a header, followed by any number of records. Each record is a type
+ * byte followed by its fields. Each field is a varint, followed by UTF-8 bytes for literal
+ * strings:
+ * <ul>
+ * <li>0: null;</li>
+ * <li>odd: reference to dictionary entry (value &gt;&gt;&gt; 1);</li>
+ * <li>even: literal string of (value &gt;&gt;&gt; 1) - 1 bytes.</li>
+ * </ul>
+ * When the dictionary is enabled, literal families, brands, models and operating system names
+ * are added to a dictionary that both the writer and reader maintain, so repetitions of these
+ * strings are written as references. Versions are always written as literals.
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+public class ResultWriter {
+    static final int MAGIC = 0xD1;
+    static final int FORMAT_VERSION = 1;
+    static final int FLAG_DICTIONARY = 1;
+
+    static final int TYPE_USER_AGENT = 1;
+    static final int TYPE_DEVICE = 2;
+    static final int TYPE_OPERATING_SYSTEM = 3;
+
+    static final int MAXIMUM_DICTIONARY_SIZE = 4096;
+
+    private final OutputStream out;
+    @Nullable
+    private final Map<String,Integer> dictionary;
+
+    /**
+     * @param out The stream to write to. Records are written unbuffered, so this should normally be a buffered stream.
+     * @param useDictionary Whether repeated family, brand, model and operating system names are written as references.
+     */
+    public ResultWriter(final OutputStream out, final boolean useDictionary) throws IOException {
+        this.out = out;
+        this.dictionary = useDictionary ? new HashMap<>() : null;
+        out.write(MAGIC);
+        out.write(FORMAT_VERSION);
+        out.write(useDictionary ? FLAG_DICTIONARY : 0);
+    }
+
+    /**
+     * @param buffer The buffer to write to, starting at its position.
+     * @param useDictionary Whether repeated family, brand, model and operating system names are written as references.
+     * @throws java.nio.BufferOverflowException When the buffer is too small.
+     */
+    public ResultWriter(final ByteBuffer buffer, final boolean useDictionary) throws IOException {
+        this(new OutputStream() {
+            @Override
+            public void write(final int b) {
+                buffer.put((byte) b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+                buffer.put(b, off, len);
+            }
+        }, useDictionary);
+    }
+
+    public void write(final UserAgent userAgent) throws IOException {
+        out.write(TYPE_USER_AGENT);
+        writeName(userAgent.getFamily());
+        writeLiteral(userAgent.getMajorVersion());
+        writeLiteral(userAgent.getMinorVersion());
+        writeLiteral(userAgent.getPatchVersion());
+    }
+
+    public void write(final Device device) throws IOException {
+        out.write(TYPE_DEVICE);
+        writeName(device.getFamily());
+        writeName(device.getBrand());
+        writeName(device.getModel());
+    }
+
+    public void write(final OperatingSystem operatingSystem) throws IOException {
+        out.write(TYPE_OPERATING_SYSTEM);
+        writeName(operatingSystem.getOperatingSystem());
+        writeLiteral(operatingSystem.getMajorVersion());
+        writeLiteral(operatingSystem.getMinorVersion());
+        writeLiteral(operatingSystem.getPatchVersion());
+        writeLiteral(operatingSystem.getPatchMinorVersion());
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private void writeName(@Nullable final String name) throws IOException {
+        if (null != name && null != dictionary) {
+            final Integer reference = dictionary.get(name);
+            if (null != reference) {
+                writeVarint((reference << 1) | 1);
+                return;
+            }
+            if (dictionary.size() < MAXIMUM_DICTIONARY_SIZE) {
+                dictionary.put(name, dictionary.size());
+            }
+        }
+        writeLiteral(name);
+    }
+
+    private void writeLiteral(@Nullable final String value) throws IOException {
+        if (null == value) {
+            writeVarint(0);
+        } else {
+            final byte[] bytes = value.getBytes(UTF_8);
+            writeVarint((bytes.length + 1) << 1);
+            out.write(bytes);
+        }
+    }
+
+    private void writeVarint(final int value) throws IOException {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            out.write((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.write(remaining);
+    }
+}
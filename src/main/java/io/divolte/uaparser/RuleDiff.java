@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Determines which results of an old list of rules remain valid under a new list of rules.
+ * Rules are compared by identity; since compiled rules are shared, identical rule
+ * configurations yield the same rule object.
+ *
+ * A result produced by old rule i (or by no rule at all) is still valid if the same rule
+ * exists in the new list, and every new rule before it already occurred before position i
+ * in the old list. Those rules did not match the input before, so they still don't.
+ */
+@ParametersAreNonnullByDefault
+@Immutable
+final class RuleDiff {
+    static final int UNKNOWN = -1;
+
+    // For each old position (and one past the end, for inputs no rule matched): the new position, or UNKNOWN.
+    private final int[] newPositions;
+
+    RuleDiff(final List<?> oldRules, final List<?> newRules) {
+        final Map<Object,Integer> oldFirst = firstPositions(oldRules);
+        final Map<Object,Integer> newFirst = firstPositions(newRules);
+
+        // For each new position j: the highest old position among the new rules before j.
+        final int[] latestOldBefore = new int[newRules.size() + 1];
+        latestOldBefore[0] = -1;
+        for (int j = 0; j < newRules.size(); j++) {
+            final Integer old = oldFirst.get(newRules.get(j));
+            latestOldBefore[j + 1] = null == old ? Integer.MAX_VALUE : Math.max(latestOldBefore[j], old);
+        }
+
+        newPositions = new int[oldRules.size() + 1];
+        for (int i = 0; i < oldRules.size(); i++) {
+            final Integer j = newFirst.get(oldRules.get(i));
+            // Only the first occurrence of a rule can ever have matched.
+            newPositions[i] = null != j && oldFirst.get(oldRules.get(i)) == i && latestOldBefore[j] < i ? j : UNKNOWN;
+        }
+        newPositions[oldRules.size()] = latestOldBefore[newRules.size()] < oldRules.size() ? newRules.size() : UNKNOWN;
+    }
+
+    private static Map<Object,Integer> firstPositions(final List<?> rules) {
+        final Map<Object,Integer> positions = new IdentityHashMap<>(rules.size());
+        for (int i = rules.size() - 1; i >= 0; i--) {
+            positions.put(rules.get(i), i);
+        }
+        return positions;
+    }
+
+    /**
+     * @param oldPosition The position of the rule that produced a result under the old rules.
+     * @return The position of the same rule under the new rules, or {@link #UNKNOWN} if the
+     *         result may have changed.
+     */
+    int newPosition(final int oldPosition) {
+        return oldPosition < 0 || oldPosition >= newPositions.length ? UNKNOWN : newPositions[oldPosition];
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import io.divolte.uaparser.Parser.InvalidParserDataException;
+
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.events.AliasEvent;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.NodeEvent;
+import org.yaml.snakeyaml.events.ScalarEvent;
+import org.yaml.snakeyaml.reader.UnicodeReader;
+
+/**
+ * Streaming reader for parser data in the uap-core regexes.yaml layout: a mapping of section
+ * names to lists of rules, where each rule is a mapping of strings to strings. The document
+ * as a whole is never materialized; only the rules themselves are kept until the end of the
+ * document, and are then handed out one at a time. A section that occurs more than once
+ * replaces its earlier occurrences, like it does when YAML is loaded into a map.
+ *
+ * A rule that is not a mapping of strings to strings is handed out along with an error,
+ * so a lenient parser can record it as invalid and continue. Problems with the overall
+ * layout of the document are thrown immediately.
+ *
+ * Anchors and aliases are resolved by recording the events of each anchored node and
+ * replaying them where the node is referred to. Merge keys ({@code <<}) are supported within
+ * rules, with the usual semantics: keys of the rule itself take precedence, followed by those
+ * of the merged mappings in the order they are listed. Merge keys are not supported at the
+ * top level of the document; they are treated like any other unknown section.
+ */
+@ParametersAreNonnullByDefault
+final class RulesLoader {
+    private final Iterator<Event> events;
+    @Nullable
+    private Event current;
+
+    private final Map<String,List<Event>> anchors = new HashMap<>();
+    private final List<Recording> recordings = new ArrayList<>();
+    private final Deque<Event> replay = new ArrayDeque<>();
+
+    private RulesLoader(final InputStream data) {
+        events = new Yaml().parse(new UnicodeReader(data)).iterator();
+    }
+
+    /**
+     * Reads all rules from the data, passing each to the consumer with the name of the
+     * section it was found in. Sections that do not contain a list have no rules.
+     */
+    static void load(final InputStream data, final RuleConsumer consumer) {
+        new RulesLoader(data).load(consumer);
+    }
+
+    private void load(final RuleConsumer consumer) {
+        expect(Event.ID.StreamStart);
+        if (peek(Event.ID.StreamEnd)) {
+            // Empty document.
+            return;
+        }
+        expect(Event.ID.DocumentStart);
+        expect(Event.ID.MappingStart);
+        // Sections in order of first occurrence, with the rules of their last occurrence.
+        final Map<String,List<BufferedRule>> sections = new LinkedHashMap<>();
+        while (!peek(Event.ID.MappingEnd)) {
+            final String section = expectScalar();
+            final List<BufferedRule> rules = new ArrayList<>();
+            sections.put(section, rules);
+            if (peek(Event.ID.SequenceStart)) {
+                next();
+                while (!peek(Event.ID.SequenceEnd)) {
+                    readRule(section, rules.size(), (s, config, error) -> rules.add(new BufferedRule(config, error)));
+                }
+                next();
+            } else {
+                skip();
+            }
+        }
+        sections.forEach((section, rules) -> rules.forEach((rule) -> consumer.accept(section, rule.config, rule.error)));
+    }
+
+    private void readRule(final String section, final int index, final RuleConsumer consumer) {
+        if (!peek(Event.ID.MappingStart)) {
+            // Record where the entry was found, and its value if that is a plain string.
+            final Map<String,String> entry = new HashMap<>();
+            entry.put("index", Integer.toString(index));
+            if (peek(Event.ID.Scalar)) {
+                entry.put("value", scalarValue((ScalarEvent) next()));
+            } else {
+                skip();
+            }
+            consumer.accept(section, entry,
+                            new InvalidParserDataException(String.format("Parser data contains an entry in '%s' at index %d that is not a mapping.", section, index)));
+            return;
+        }
+        final Map<String,String> rule = new HashMap<>();
+        final InvalidParserDataException error = readMapping(section, rule);
+        consumer.accept(section, rule, error);
+    }
+
+    /*
+     * Reads a mapping into the rule, without replacing entries already present. Values that
+     * are not strings are skipped, so the rest of the data stays in sync; the first problem
+     * found is returned.
+     */
+    @Nullable
+    private InvalidParserDataException readMapping(final String section, final Map<String,String> rule) {
+        next();
+        final Map<String,String> entries = new HashMap<>();
+        final List<Map<String,String>> merges = new ArrayList<>();
+        InvalidParserDataException error = null;
+        while (!peek(Event.ID.MappingEnd)) {
+            if (peekMergeKey()) {
+                next();
+                error = firstError(error, readMerge(section, merges));
+            } else {
+                final String key = expectScalar();
+                if (peek(Event.ID.Scalar)) {
+                    entries.put(key, scalarValue((ScalarEvent) next()));
+                } else {
+                    skip();
+                    error = firstError(error, new InvalidParserDataException(String.format("Parser data contains an entry in '%s' with a non-string value for '%s'.", section, key)));
+                }
+            }
+        }
+        next();
+        putMissing(rule, entries);
+        merges.forEach((merge) -> putMissing(rule, merge));
+        return error;
+    }
+
+    /*
+     * Unlike putIfAbsent, this keeps keys that are present with an explicit null value.
+     */
+    private static void putMissing(final Map<String,String> rule, final Map<String,String> entries) {
+        entries.forEach((key, value) -> {
+            if (!rule.containsKey(key)) {
+                rule.put(key, value);
+            }
+        });
+    }
+
+    /*
+     * Reads the value of a merge key: a mapping, or a sequence of mappings.
+     */
+    @Nullable
+    private InvalidParserDataException readMerge(final String section, final List<Map<String,String>> merges) {
+        if (peek(Event.ID.MappingStart)) {
+            final Map<String,String> merge = new HashMap<>();
+            merges.add(merge);
+            return readMapping(section, merge);
+        }
+        InvalidParserDataException error = null;
+        if (peek(Event.ID.SequenceStart)) {
+            next();
+            while (!peek(Event.ID.SequenceEnd)) {
+                error = firstError(error, peek(Event.ID.MappingStart) ? readMerge(section, merges) : invalidMerge(section));
+            }
+            next();
+        } else {
+            error = invalidMerge(section);
+        }
+        return error;
+    }
+
+    private InvalidParserDataException invalidMerge(final String section) {
+        skip();
+        return new InvalidParserDataException(String.format("Parser data contains an entry in '%s' with a merge key that does not refer to mappings.", section));
+    }
+
+    @Nullable
+    private static InvalidParserDataException firstError(@Nullable final InvalidParserDataException first,
+                                                         @Nullable final InvalidParserDataException second) {
+        return null != first ? first : second;
+    }
+
+    private boolean peekMergeKey() {
+        final Event event = current();
+        return event.is(Event.ID.Scalar)
+            && ((ScalarEvent) event).getImplicit().canOmitTagInPlainScalar()
+            && "<<".equals(((ScalarEvent) event).getValue());
+    }
+
+    @Nullable
+    private static String scalarValue(final ScalarEvent scalar) {
+        // Plain scalars can denote null, like they do when YAML is loaded into maps.
+        if (scalar.getImplicit().canOmitTagInPlainScalar()) {
+            switch (scalar.getValue()) {
+            case "":
+            case "~":
+            case "null":
+            case "Null":
+            case "NULL":
+                return null;
+            default:
+                break;
+            }
+        }
+        return scalar.getValue();
+    }
+
+    private String expectScalar() {
+        if (!peek(Event.ID.Scalar)) {
+            throw new InvalidParserDataException("Parser data contains a mapping with a non-string key.");
+        }
+        final String value = scalarValue((ScalarEvent) next());
+        if (null == value) {
+            throw new InvalidParserDataException("Parser data contains a mapping with a null key.");
+        }
+        return value;
+    }
+
+    /*
+     * Skips a complete node, including any nested nodes.
+     */
+    private void skip() {
+        int depth = 0;
+        do {
+            final Event event = next();
+            if (event.is(Event.ID.MappingStart) || event.is(Event.ID.SequenceStart)) {
+                depth++;
+            } else if (event.is(Event.ID.MappingEnd) || event.is(Event.ID.SequenceEnd)) {
+                depth--;
+            }
+        } while (depth > 0);
+    }
+
+    private void expect(final Event.ID id) {
+        final Event event = next();
+        if (!event.is(id)) {
+            throw new InvalidParserDataException("Parser data is not a mapping of sections to lists of rules; found " + event + '.');
+        }
+    }
+
+    private boolean peek(final Event.ID id) {
+        return current().is(id);
+    }
+
+    private Event current() {
+        if (null == current) {
+            final Event event = nextResolved();
+            record(event);
+            current = event;
+        }
+        return current;
+    }
+
+    /*
+     * Returns the next event, with aliases replaced by the events of the node they refer to.
+     */
+    private Event nextResolved() {
+        if (!replay.isEmpty()) {
+            return replay.poll();
+        }
+        final Event event = events.next();
+        if (event.is(Event.ID.Alias)) {
+            final String anchor = ((AliasEvent) event).getAnchor();
+            final List<Event> node = anchors.get(anchor);
+            if (null == node) {
+                throw new InvalidParserDataException(String.format("Parser data refers to undefined anchor '%s'.", anchor));
+            }
+            // Recorded nodes never contain aliases, so a replay never needs to be nested.
+            replay.addAll(node);
+            return replay.poll();
+        }
+        if (event instanceof NodeEvent && null != ((NodeEvent) event).getAnchor()) {
+            recordings.add(new Recording(((NodeEvent) event).getAnchor()));
+        }
+        return event;
+    }
+
+    private void record(final Event event) {
+        for (final Iterator<Recording> iterator = recordings.iterator(); iterator.hasNext();) {
+            final Recording recording = iterator.next();
+            if (recording.add(event)) {
+                anchors.put(recording.anchor, recording.events);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Receives the rules read from parser data.
+     */
+    interface RuleConsumer {
+        /**
+         * @param section The section the rule was found in.
+         * @param config The rule; for entries that are not a mapping, their index in the section
+         *               and, for strings, their value.
+         * @param error If not null, the reason the rule is invalid.
+         */
+        void accept(String section, Map<String,String> config, @Nullable InvalidParserDataException error);
+    }
+
+    private Event next() {
+        final Event event = current();
+        current = null;
+        return event;
+    }
+
+    private static final class BufferedRule {
+        private final Map<String,String> config;
+        @Nullable
+        private final InvalidParserDataException error;
+
+        private BufferedRule(final Map<String,String> config, @Nullable final InvalidParserDataException error) {
+            this.config = config;
+            this.error = error;
+        }
+    }
+
+    /*
+     * The events of an anchored node, as far as they have been read.
+     */
+    private static final class Recording {
+        private final String anchor;
+        private final List<Event> events = new ArrayList<>();
+        private int depth;
+
+        private Recording(final String anchor) {
+            this.anchor = anchor;
+        }
+
+        /*
+         * Returns true once the complete node has been recorded.
+         */
+        private boolean add(final Event event) {
+            events.add(event);
+            if (event.is(Event.ID.MappingStart) || event.is(Event.ID.SequenceStart)) {
+                depth++;
+            } else if (event.is(Event.ID.MappingEnd) || event.is(Event.ID.SequenceEnd)) {
+                depth--;
+            }
+            return 0 == depth;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Second-level cache of parse results that can be shared between processes, such as a
+ * shared memory file or an external key/value store. A {@link CachingParser} consults it on
+ * misses in its in-process cache, and writes newly parsed results to it.
+ *
+ * Keys and values are opaque, compactly serialized byte arrays. Keys include a fingerprint
+ * of the rule data, so parsers using different rules never see each other's results.
+ *
+ * Implementations must be thread-safe, and neither method may block the caller: lookups
+ * complete their future when the value is available, and stores should be written behind.
+ */
+@ParametersAreNonnullByDefault
+public interface SharedResultCache {
+    /**
+     * @return A future that completes with the cached value, or empty if there is none.
+     */
+    CompletableFuture<Optional<byte[]>> get(byte[] key);
+
+    void put(byte[] key, byte[] value);
+}
@@ -16,9 +16,10 @@
 
 package io.divolte.uaparser;
 
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Objects;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -27,6 +28,18 @@ import javax.annotation.ParametersAreNonnullByDefault;
 public class UserAgent {
     public static final UserAgent OTHER = new UserAgent("Other", null, null, null);
 
+    /**
+     * Fields of a {@link UserAgent} that can be requested when parsing with a projection.
+     */
+    public enum Field {
+        FAMILY,
+        MAJOR_VERSION,
+        MINOR_VERSION,
+        PATCH_VERSION;
+
+        static final Set<Field> ALL = Collections.unmodifiableSet(EnumSet.allOf(Field.class));
+    }
+
     private final String family;
     private final String majorVersion;
 
@@ -35,7 +48,11 @@ public class UserAgent {
     @Nullable
     private final String patchVersion;
 
-    public UserAgent(String family, @Nullable String majorVersion, @Nullable String minorVersion, @Nullable String patchVersion) {
+    // Not part of equals() and hashCode(); derived from the version fields.
+    @Nullable
+    private Version version;
+
+    public UserAgent(@Nullable String family, @Nullable String majorVersion, @Nullable String minorVersion, @Nullable String patchVersion) {
         this.family = family;
         this.majorVersion = majorVersion;
         this.minorVersion = minorVersion;
@@ -58,10 +75,20 @@ public class UserAgent {
         return patchVersion;
     }
 
+    /**
+     * @return The version, parsed on first use and cached afterwards.
+     */
+    public Version getVersion() {
+        // Racy single-check: Version is immutable, so at worst it is parsed more than once.
+        Version result = version;
+        if (null == result) {
+            version = result = Version.of(majorVersion, minorVersion, patchVersion);
+        }
+        return result;
+    }
+
     public String makeVersionString() {
-        return Stream.of(majorVersion, minorVersion, patchVersion)
-                     .filter((s) -> s != null)
-                     .collect(Collectors.joining("."));
+        return getVersion().toString();
     }
 
     @Override
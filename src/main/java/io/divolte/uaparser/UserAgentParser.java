@@ -24,10 +24,13 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -44,36 +47,90 @@ public class UserAgentParser {
     }
 
     public UserAgentParser(final List<Map<String,String>> configs, boolean lenient) {
+        this(lenient);
+        configs.forEach((config) -> add(config, null));
+    }
+
+    /*
+     * Creates a parser without rules; rules are added while loading parser data.
+     */
+    UserAgentParser(boolean lenient) {
         this.lenient = lenient;
-        patterns = new ArrayList<UserAgentParser.UserAgentPattern>(configs.size());
+        patterns = new ArrayList<UserAgentParser.UserAgentPattern>();
         invalidConfigs = lenient ? new ArrayList<Map<String,String>>() : Collections.emptyList();
+    }
 
-        configs.forEach((config) -> {
-            try {
-                patterns.add(prepareParser(config));
-            } catch(InvalidParserDataException ipde) {
-                if (lenient) {
-                    invalidConfigs.add(config);
-                } else {
-                    throw ipde;
-                }
+    /*
+     * Adds a rule. The error, if given, is a structural problem found while loading the rule;
+     * the rule is then invalid and only recorded as such.
+     */
+    void add(final Map<String,String> config, @Nullable final InvalidParserDataException error) {
+        try {
+            if (null != error) {
+                throw error;
             }
-        });
+            patterns.add(CompiledRules.rule("user_agent", config, UserAgentParser::prepareParser));
+        } catch(InvalidParserDataException ipde) {
+            if (lenient) {
+                invalidConfigs.add(config);
+            } else {
+                throw ipde;
+            }
+        }
     }
 
     public UserAgent parse(String input) {
-        return patterns.stream()
-                       .filter((p) -> p.pattern.asPredicate().test(input))
-                       .findFirst().map((p) -> {
-                           final Matcher matcher = p.pattern.matcher(input);
-                           matcher.find();
-                           return new UserAgent(
-                                   p.familyReplacer.apply(matcher),
-                                   p.majorVersionReplacer.apply(matcher),
-                                   p.minorVersionReplacer.apply(matcher),
-                                   p.patchVersionReplacer.apply(matcher)
-                                   );
-                       }).orElse(UserAgent.OTHER);
+        return parse(input, UserAgent.Field.ALL);
+    }
+
+    /**
+     * Parses the input, but only computes the requested fields. Fields that were not
+     * requested may be null in the result.
+     * @param input The user agent string to parse.
+     * @param fields The fields to compute.
+     * @return The parse result.
+     */
+    public UserAgent parse(String input, Set<UserAgent.Field> fields) {
+        return parse(input, fields, IGNORE_RULE);
+    }
+
+    /*
+     * Parses the input, and passes the index of the matching rule to the given consumer.
+     * If no rule matches, the index passed is the number of rules.
+     */
+    UserAgent parse(String input, Set<UserAgent.Field> fields, IntConsumer matchingRule) {
+        for (int i = 0; i < patterns.size(); i++) {
+            final UserAgentPattern p = patterns.get(i);
+            final Matcher matcher = p.pattern.matcher(input);
+            if (matcher.find()) {
+                matchingRule.accept(i);
+                return new UserAgent(
+                        project(fields, UserAgent.Field.FAMILY, p.familyReplacer, matcher),
+                        project(fields, UserAgent.Field.MAJOR_VERSION, p.majorVersionReplacer, matcher),
+                        project(fields, UserAgent.Field.MINOR_VERSION, p.minorVersionReplacer, matcher),
+                        project(fields, UserAgent.Field.PATCH_VERSION, p.patchVersionReplacer, matcher)
+                        );
+            }
+        }
+        matchingRule.accept(patterns.size());
+        return UserAgent.OTHER;
+    }
+
+    /*
+     * Returns the regex of the rule with the given index, as passed to the consumer of
+     * matching rules, or null if the index denotes that no rule matched.
+     */
+    @Nullable
+    String regex(final int rule) {
+        return rule < patterns.size() ? patterns.get(rule).pattern.pattern() : null;
+    }
+
+    /*
+     * The compiled rules, in order. Identical rules are shared between parsers, so rules
+     * from different parsers can be compared by identity.
+     */
+    List<?> rules() {
+        return Collections.unmodifiableList(patterns);
     }
 
     public List<Map<String,String>> getInvalidConfigurations() {
@@ -87,10 +144,25 @@ public class UserAgentParser {
         return lenient;
     }
 
+    /**
+     * @return The estimated memory footprint of the rules of this parser.
+     */
+    public Footprint getFootprint() {
+        return new Footprint(patterns.size(),
+                             patterns.stream().mapToLong((p) -> estimateBytes(p.pattern)).sum(),
+                             patterns.stream()
+                                     .mapToLong((p) -> estimateBytes(p.familyReplacer)
+                                                     + estimateBytes(p.majorVersionReplacer)
+                                                     + estimateBytes(p.minorVersionReplacer)
+                                                     + estimateBytes(p.patchVersionReplacer))
+                                     .sum(),
+                             0, 0);
+    }
+
     private static UserAgentPattern prepareParser(Map<String,String> config) {
         final String regex = Optional.ofNullable(config.get("regex"))
                                      .orElseThrow(() -> new Parser.InvalidParserDataException("User agent parser data contains entry without regex key."));
-        final Pattern pattern = Pattern.compile(regex);
+        final Pattern pattern = CompiledRules.pattern(regex);
         // Pattern does not expose the group count, so we must create a matcher
         final int groupCount = pattern.matcher("").groupCount();
 
@@ -100,7 +172,7 @@ public class UserAgentParser {
 
         return new UserAgentPattern(
                 pattern,
-                replacer(regex, groupCount, config.getOrDefault("family_replacement", "$1")),
+                replacer(regex, groupCount, Optional.ofNullable(config.get("family_replacement")).orElse("$1")),
                 Optional.ofNullable(config.get("v1_replacement"))
                         .map((r) -> replacer(regex, groupCount, r))
                         .orElse(groupCount >= 2 ? (m) -> m.group(2) : (m) -> null),
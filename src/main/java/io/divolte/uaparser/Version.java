@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Numeric representation of a version with up to four components, as found on a
+ * {@link UserAgent} or {@link OperatingSystem}. Components are parsed once, so comparisons
+ * and range checks do not allocate.
+ *
+ * Each component is parsed from its leading digits; a component without leading digits
+ * (e.g. "b3") counts as 0. Absent components also count as 0 when comparing, so "14" and
+ * "14.0" are considered equal. The original components are retained for {@link #toString()}.
+ */
+@ParametersAreNonnullByDefault
+@Immutable
+public final class Version implements Comparable<Version> {
+    public static final Version EMPTY = new Version(0, 0, 0, 0, 0, "");
+
+    private final int major;
+    private final int minor;
+    private final int patch;
+    private final int patchMinor;
+    private final int length;
+    private final String string;
+
+    private Version(final int major, final int minor, final int patch, final int patchMinor, final int length, final String string) {
+        this.major = major;
+        this.minor = minor;
+        this.patch = patch;
+        this.patchMinor = patchMinor;
+        this.length = length;
+        this.string = string;
+    }
+
+    /**
+     * Creates a version from its components, major first. Each component keeps its position;
+     * a null component counts as 0, so a version without a major component never compares
+     * as if its minor component were the major one. Null components are left out of the
+     * version string, like they are when building a version string from the fields of a
+     * parse result.
+     */
+    public static Version of(@Nullable final String... components) {
+        if (components.length > 4) {
+            throw new IllegalArgumentException("A version has at most 4 components.");
+        }
+        final int[] values = new int[4];
+        final StringBuilder builder = new StringBuilder();
+        int length = 0;
+        for (int i = 0; i < components.length; i++) {
+            final String component = components[i];
+            if (null != component) {
+                if (length > 0) {
+                    builder.append('.');
+                }
+                builder.append(component);
+                values[i] = leadingNumber(component);
+                length = i + 1;
+            }
+        }
+        return 0 == length ? EMPTY : new Version(values[0], values[1], values[2], values[3], length, builder.toString());
+    }
+
+    private static int leadingNumber(final String component) {
+        long value = 0;
+        for (int i = 0; i < component.length(); i++) {
+            final char c = component.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = Math.min(Integer.MAX_VALUE, value * 10 + (c - '0'));
+        }
+        return (int) value;
+    }
+
+    public int getMajor() {
+        return major;
+    }
+
+    public int getMinor() {
+        return minor;
+    }
+
+    public int getPatch() {
+        return patch;
+    }
+
+    public int getPatchMinor() {
+        return patchMinor;
+    }
+
+    /**
+     * @return The number of components up to and including the last one present.
+     */
+    public int length() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return 0 == length;
+    }
+
+    public int compareTo(final int major, final int minor, final int patch, final int patchMinor) {
+        int result = Integer.compare(this.major, major);
+        if (0 == result) {
+            result = Integer.compare(this.minor, minor);
+            if (0 == result) {
+                result = Integer.compare(this.patch, patch);
+                if (0 == result) {
+                    result = Integer.compare(this.patchMinor, patchMinor);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int compareTo(final Version other) {
+        return compareTo(other.major, other.minor, other.patch, other.patchMinor);
+    }
+
+    public boolean isAtLeast(final int major) {
+        return compareTo(major, 0, 0, 0) >= 0;
+    }
+
+    public boolean isAtLeast(final int major, final int minor) {
+        return compareTo(major, minor, 0, 0) >= 0;
+    }
+
+    public boolean isAtLeast(final int major, final int minor, final int patch) {
+        return compareTo(major, minor, patch, 0) >= 0;
+    }
+
+    public boolean isBefore(final int major) {
+        return compareTo(major, 0, 0, 0) < 0;
+    }
+
+    public boolean isBefore(final int major, final int minor) {
+        return compareTo(major, minor, 0, 0) < 0;
+    }
+
+    public boolean isBefore(final int major, final int minor, final int patch) {
+        return compareTo(major, minor, patch, 0) < 0;
+    }
+
+    /**
+     * @return True if this version is at least the lower bound and before the upper bound.
+     */
+    public boolean isInRange(final Version lowerInclusive, final Version upperExclusive) {
+        return compareTo(lowerInclusive) >= 0 && compareTo(upperExclusive) < 0;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + major;
+        result = prime * result + minor;
+        result = prime * result + patch;
+        result = prime * result + patchMinor;
+        return result;
+    }
+
+    /**
+     * Versions are equal when they compare equal, regardless of how they were written.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        return 0 == compareTo((Version) obj);
+    }
+
+    /**
+     * @return The components this version was created from, joined by dots.
+     */
+    @Override
+    public String toString() {
+        return string;
+    }
+}
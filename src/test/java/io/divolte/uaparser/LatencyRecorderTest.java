@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyRecorderTest {
+
+    @Test
+    public void shouldExpireSlowInputsAfterTheirWindow() {
+        long window = TimeUnit.SECONDS.toNanos(10);
+        LatencyRecorder recorder = new LatencyRecorder(2, window);
+        long now = System.nanoTime();
+        recorder.record("outlier", now, now + 500, null);
+        recorder.record("slow", now, now + 400, null);
+        recorder.record("fast", now, now + 100, null);
+        assertEquals(Arrays.asList("outlier", "slow"), slowestInputs(recorder.snapshot(now + 500)));
+
+        // The previous window is still reported, but no longer keeps faster inputs out.
+        now += window;
+        recorder.record("recent", now, now + 100, null);
+        assertEquals(Arrays.asList("outlier", "slow"), slowestInputs(recorder.snapshot(now + 100)));
+
+        now += window;
+        recorder.record("latest", now, now + 200, null);
+        assertEquals(Arrays.asList("latest", "recent"), slowestInputs(recorder.snapshot(now + 200)));
+        assertEquals(Collections.emptyList(), slowestInputs(recorder.snapshot(now + 3 * window)));
+        assertEquals(5, recorder.snapshot().getCount());
+    }
+
+    private static List<String> slowestInputs(LatencySnapshot snapshot) {
+        List<String> inputs = new ArrayList<>();
+        snapshot.getSlowestInputs().forEach((slowInput) -> inputs.add(slowInput.getInput()));
+        return inputs;
+    }
+
+    @Test
+    public void shouldBucketLatenciesWithBoundedError() {
+        for (long value = 0; value < 1 << 20; value += 1 + value / 100) {
+            long highest = LatencyRecorder.highestValue(LatencyRecorder.bucket(value));
+            assertTrue(highest >= value);
+            assertTrue(highest - value <= value / 8);
+        }
+    }
+}
@@ -18,6 +18,32 @@ package io.divolte.uaparser;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.hamcrest.CoreMatchers;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -81,6 +107,416 @@ public class ParserTest {
         assertEquals(new UserAgent("xx less_groups xx", "xx 10 xx", null, null), agent);
     }
 
+    @Test
+    public void shouldShareCompiledRulesBetweenParsers() {
+        Parser first = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml"));
+        Parser second = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml"));
+        assertSame(first.getUserAgentParser().rules().get(0), second.getUserAgentParser().rules().get(0));
+        assertSame(first.getDeviceParser().rules().get(0), second.getDeviceParser().rules().get(0));
+        assertSame(first.getOperatingSystemParser().rules().get(0), second.getOperatingSystemParser().rules().get(0));
+        assertEquals(first.parseDevice("iTunes-AppleTV/4.1"), second.parseDevice("iTunes-AppleTV/4.1"));
+    }
+
+    @Test
+    public void shouldEstimateFootprint() throws Exception {
+        Parser parser = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml"));
+        Footprint footprint = parser.getFootprint();
+        assertEquals(3, footprint.getRuleCount());
+        assertTrue(footprint.getPatternBytes() > 0);
+        assertTrue(footprint.getReplacementBytes() > 0);
+        assertEquals(footprint.getPatternBytes() + footprint.getReplacementBytes(), footprint.getTotalBytes());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("io.divolte.uaparser:type=Parser,name=test");
+        server.registerMBean(parser, name);
+        try {
+            CompositeData attribute = (CompositeData) server.getAttribute(name, "Footprint");
+            assertEquals(footprint.getTotalBytes(), attribute.get("totalBytes"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void shouldOnlyComputeRequestedFields() {
+        Parser parser = new Parser(ParserTest.class.getResourceAsStream("/test-regexes.yaml"), true);
+        String input = "all_replacements 10.20.30";
+        UserAgent agent = parser.parseUserAgent(input, EnumSet.of(UserAgent.Field.FAMILY));
+        assertEquals(new UserAgent("xx all_replacements xx", null, null, null), agent);
+
+        OperatingSystem os = parser.parseOperatingSystem("Mac OS X 10_10_2",
+                                                         EnumSet.of(OperatingSystem.Field.OPERATING_SYSTEM, OperatingSystem.Field.MAJOR_VERSION));
+        assertEquals(new OperatingSystem("Mac OS X", "10", null, null, null), os);
+    }
+
+    @Test
+    public void shouldShareCacheEntriesForCanonicallyEqualInputs() {
+        Parser parser = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml"));
+        CachingParser cachingParser = new CachingParser(parser, Canonicalizer.defaults(), 100);
+        String facebook = "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_10_2) "
+                        + "AppleWebKit/537.36 (KHTML, like Gecko) "
+                        + "Chrome/40.0.2214.93 Safari/537.36 [FBAN/FBIOS;FBLC/%s;FBRV/%d]";
+        String instagram = "Mozilla/5.0 (iPhone; CPU iPhone OS 12_1 like Mac OS X) "
+                         + "AppleWebKit/605.1.15 (KHTML, like Gecko) "
+                         + "Mobile/16B92 Instagram 73.0.0.23.99 (iPhone10,6; iOS 12_1; %s; scale=3.00; %s1125x2436; %d)";
+        String weChat = "Mozilla/5.0 (Linux; Android 9; MI 8 Build/PKQ1.180729.001; wv) "
+                      + "AppleWebKit/537.36 (KHTML, like Gecko) Version/4.0 "
+                      + "Chrome/66.0.3359.126 MQQBrowser/6.2 TBS/044506 Mobile Safari/537.36 "
+                      + "MicroMessenger/7.0.3.1400(0x2700033B) Process/tools NetType/%s Language/%s";
+        List<List<String>> groups = Arrays.asList(
+                Arrays.asList(String.format(facebook, "en_US", 1234),
+                              String.format(facebook, "nl_NL", 5678)),
+                Arrays.asList(String.format(instagram, "en_US; en-US", "gamut=wide; ", 129911097),
+                              String.format(instagram, "nl_NL", "", 128676146)),
+                Arrays.asList(String.format(weChat, "WIFI", "zh_CN"),
+                              String.format(weChat, "4G", "en")));
+
+        for (List<String> inputs : groups) {
+            assertEquals(Collections.emptyList(), cachingParser.getCanonicalizer().verify(parser, inputs));
+            for (String input : inputs) {
+                assertEquals(parser.parseUserAgent(input), cachingParser.parseUserAgent(input));
+            }
+        }
+        assertEquals(new UserAgent("Chrome", "40", "0", "2214"), cachingParser.parseUserAgent(groups.get(0).get(0)));
+        assertEquals(groups.size(), cachingParser.getFootprint().getCacheEntries());
+    }
+
+    @Test
+    public void shouldExposeCacheFootprint() throws Exception {
+        Parser parser = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml"));
+        CachingParser cachingParser = new CachingParser(parser, 100);
+        cachingParser.parseDevice("iTunes-AppleTV/4.1");
+        Footprint footprint = cachingParser.getDeviceFootprint();
+        assertEquals(1, footprint.getCacheEntries());
+        assertTrue(footprint.getCacheBytes() > 0);
+        assertEquals(0, cachingParser.getUserAgentFootprint().getCacheEntries());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("io.divolte.uaparser:type=CachingParser,name=test");
+        server.registerMBean(cachingParser, name);
+        try {
+            CompositeData attribute = (CompositeData) server.getAttribute(name, "Footprint");
+            assertEquals(1L, attribute.get("cacheEntries"));
+            assertEquals(cachingParser.getFootprint().getCacheBytes(), attribute.get("cacheBytes"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void shouldCacheProjectionsSeparately() {
+        Parser parser = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml"));
+        InMemorySharedResultCache sharedCache = new InMemorySharedResultCache(100);
+        CachingParser cachingParser = new CachingParser(parser, Canonicalizer.NONE, 100, sharedCache, Duration.ofSeconds(10));
+        String input = "Chrome/40.0.2214.93";
+        EnumSet<UserAgent.Field> familyOnly = EnumSet.of(UserAgent.Field.FAMILY);
+        assertEquals(new UserAgent("Chrome", null, null, null), cachingParser.parseUserAgent(input, familyOnly));
+        familyOnly.add(UserAgent.Field.MAJOR_VERSION);
+        assertEquals(new UserAgent("Chrome", "40", null, null), cachingParser.parseUserAgent(input, familyOnly));
+        assertEquals(new UserAgent("Chrome", "40", "0", "2214"), cachingParser.parseUserAgent(input));
+        assertEquals(new UserAgent("Chrome", null, null, null), cachingParser.parseUserAgent(input, EnumSet.of(UserAgent.Field.FAMILY)));
+        assertEquals(3, cachingParser.getFootprint().getCacheEntries());
+        assertEquals(3, sharedCache.size());
+
+        CachingParser updated = cachingParser.update(parser.update(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml")));
+        assertEquals(3, updated.getFootprint().getCacheEntries());
+    }
+
+    @Test
+    public void shouldReportCanonicalizationThatChangesResults() {
+        Parser parser = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml"));
+        Canonicalizer canonicalizer = new Canonicalizer(Collections.singletonMap("Chrome/\\d+", "Chrome/0"));
+        String input = "Chrome/40.0.2214.93";
+        assertEquals(Collections.singletonList(input), canonicalizer.verify(parser, Collections.singletonList(input)));
+    }
+
+    @Test
+    public void shouldParseAsynchronouslyAndCompleteCacheHitsImmediately() throws Exception {
+        Parser parser = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml"));
+        try (AsyncParser asyncParser = new AsyncParser(new CachingParser(parser, 100), 1, 10, AsyncParser.OverflowPolicy.REJECT)) {
+            String input = "iTunes-AppleTV/4.1";
+            assertEquals(new Device("AppleTV", "Apple", "AppleTV"), asyncParser.parseDevice(input).get(10, TimeUnit.SECONDS));
+            CompletableFuture<Device> hit = asyncParser.parseDevice(input);
+            assertTrue(hit.isDone());
+            assertEquals(new Device("AppleTV", "Apple", "AppleTV"), hit.get());
+        }
+    }
+
+    @Test
+    public void shouldCoalesceConcurrentParsesAndRejectWhenQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> parsed = Collections.synchronizedList(new ArrayList<>());
+        Parser parser = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml")) {
+            @Override
+            Device parseDevice(String input, Set<Device.Field> fields, IntConsumer matchingRule) {
+                parsed.add(input);
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.parseDevice(input, fields, matchingRule);
+            }
+        };
+        try (AsyncParser asyncParser = new AsyncParser(new CachingParser(parser, 100), 1, 2, AsyncParser.OverflowPolicy.REJECT)) {
+            // The single worker blocks on the first parse, so all requests for the input are pending together.
+            String input = "iTunes-AppleTV/4.1";
+            List<CompletableFuture<Device>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(asyncParser.parseDevice(input));
+            }
+            assertNotSame(futures.get(0), futures.get(1));
+
+            // The worker is busy, so these fill the queue.
+            CompletableFuture<Device> queued = asyncParser.parseDevice("first queued");
+            CompletableFuture<Device> alsoQueued = asyncParser.parseDevice("second queued");
+            assertEquals(2, asyncParser.getQueueSize());
+            CompletableFuture<Device> rejected = asyncParser.parseDevice("rejected");
+            assertTrue(rejected.isCompletedExceptionally());
+
+            futures.get(0).obtrudeValue(Device.OTHER);
+            release.countDown();
+            for (CompletableFuture<Device> future : futures.subList(1, futures.size())) {
+                assertEquals(new Device("AppleTV", "Apple", "AppleTV"), future.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(Device.OTHER, queued.get(10, TimeUnit.SECONDS));
+            assertEquals(Device.OTHER, alsoQueued.get(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(input, "first queued", "second queued"), parsed);
+
+            expected.expectCause(CoreMatchers.instanceOf(RejectedExecutionException.class));
+            rejected.get();
+        }
+    }
+
+    @Test
+    public void shouldRejectWhenClosed() throws Exception {
+        Parser parser = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml"));
+        AsyncParser asyncParser = new AsyncParser(new CachingParser(parser, 100), 1, 10, AsyncParser.OverflowPolicy.CALLER_RUNS);
+        asyncParser.close();
+        expected.expectCause(CoreMatchers.instanceOf(RejectedExecutionException.class));
+        asyncParser.parseUserAgent("Chrome/40.0.2214.93").get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldFingerprintParserData() {
+        Parser minimal = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml"));
+        assertEquals(minimal.getFingerprint(), new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml")).getFingerprint());
+        assertNotEquals(minimal.getFingerprint(), new Parser(ParserTest.class.getResourceAsStream("/test-regexes.yaml"), true).getFingerprint());
+    }
+
+    @Test
+    public void shouldShareResultsThroughSecondLevelCache() {
+        AtomicInteger hits = new AtomicInteger();
+        SharedResultCache sharedCache = new InMemorySharedResultCache(100) {
+            @Override
+            public CompletableFuture<Optional<byte[]>> get(byte[] key) {
+                return super.get(key).thenApply((v) -> {
+                    v.ifPresent((x) -> hits.incrementAndGet());
+                    return v;
+                });
+            }
+        };
+        String input = "iTunes-AppleTV/4.1";
+        for (int i = 0; i < 2; i++) {
+            Parser parser = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml"));
+            CachingParser cachingParser = new CachingParser(parser, Canonicalizer.NONE, 100, sharedCache, Duration.ofSeconds(10));
+            assertEquals(new Device("AppleTV", "Apple", "AppleTV"), cachingParser.parseDevice(input));
+            assertEquals(new Device("AppleTV", "Apple", "AppleTV"), cachingParser.parseDevice(input));
+        }
+        assertEquals(1, hits.get());
+    }
+
+    @Test
+    public void shouldParseLocallyWhenSecondLevelCacheIsSlow() throws Exception {
+        CompletableFuture<Optional<byte[]>> lookup = new CompletableFuture<>();
+        SharedResultCache slowCache = new SharedResultCache() {
+            @Override
+            public CompletableFuture<Optional<byte[]>> get(byte[] key) {
+                return lookup;
+            }
+
+            @Override
+            public void put(byte[] key, byte[] value) {
+            }
+        };
+        Parser parser = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml"));
+        // The local parse is not held back by the timeout.
+        CachingParser cachingParser = new CachingParser(parser, Canonicalizer.NONE, 100, slowCache, Duration.ofDays(1));
+        CompletableFuture<Device> result = CompletableFuture.supplyAsync(() -> cachingParser.parseDevice("iTunes-AppleTV/4.1"));
+        assertEquals(new Device("AppleTV", "Apple", "AppleTV"), result.get(10, TimeUnit.SECONDS));
+        assertTrue(lookup.isCancelled());
+    }
+
+    @Test
+    public void shouldParseLocallyWhenSecondLevelCacheFails() {
+        SharedResultCache failingCache = new SharedResultCache() {
+            @Override
+            public CompletableFuture<Optional<byte[]>> get(byte[] key) {
+                throw new IllegalStateException("Lookup failed.");
+            }
+
+            @Override
+            public void put(byte[] key, byte[] value) {
+                throw new IllegalStateException("Store failed.");
+            }
+        };
+        Parser parser = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml"));
+        CachingParser cachingParser = new CachingParser(parser, Canonicalizer.NONE, 100, failingCache, Duration.ofSeconds(10));
+        assertEquals(new Device("AppleTV", "Apple", "AppleTV"), cachingParser.parseDevice("iTunes-AppleTV/4.1"));
+    }
+
+    @Test
+    public void shouldIgnoreUnknownSectionsWhenLoading() {
+        String data = "version: {major: 1, tags: [a, b]}\n"
+                    + "user_agent_parsers:\n"
+                    + "  - regex: '(Chrome)/(\\d+)'\n"
+                    + "    v2_replacement: ~\n"
+                    + "os_parsers: []\n";
+        Parser parser = new Parser(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(new UserAgent("Chrome", "40", null, null), parser.parseUserAgent("Chrome/40.0.2214.93"));
+        assertEquals(OperatingSystem.OTHER, parser.parseOperatingSystem("Chrome/40.0.2214.93"));
+    }
+
+    @Test
+    public void shouldUseLastOccurrenceOfRepeatedSectionWhenLoading() {
+        String data = "user_agent_parsers:\n"
+                    + "  - regex: '(Chrome)/(\\d+)'\n"
+                    + "os_parsers: []\n"
+                    + "user_agent_parsers:\n"
+                    + "  - regex: '(Firefox)/(\\d+)'\n";
+        Parser parser = new Parser(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(UserAgent.OTHER, parser.parseUserAgent("Chrome/40.0.2214.93"));
+        assertEquals(new UserAgent("Firefox", "35", null, null), parser.parseUserAgent("Firefox/35.0"));
+    }
+
+    @Test
+    public void shouldResolveAliasesAndMergeKeysWhenLoading() {
+        String data = "user_agent_parsers:\n"
+                    + "  - &chrome\n"
+                    + "    regex: '(Chrome)/(\\d+)'\n"
+                    + "    v1_replacement: &version '99'\n"
+                    + "  - <<: *chrome\n"
+                    + "    regex: '(Chromium)/(\\d+)'\n"
+                    + "  - <<: {family_replacement: 'Merged'}\n"
+                    + "    regex: '(Opera)/(\\d+)'\n"
+                    + "    family_replacement: ~\n"
+                    + "device_parsers:\n"
+                    + "  - *chrome\n"
+                    + "os_parsers:\n"
+                    + "  - <<: [{regex: 'Unused', os_replacement: 'First'}, {os_replacement: 'Second', os_v1_replacement: *version}]\n"
+                    + "    regex: '(Windows)'\n";
+        Parser parser = new Parser(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(new UserAgent("Chrome", "99", null, null), parser.parseUserAgent("Chrome/40.0.2214.93"));
+        assertEquals(new UserAgent("Chromium", "99", null, null), parser.parseUserAgent("Chromium/40.0.2214.93"));
+        assertEquals(new UserAgent("Opera", "12", null, null), parser.parseUserAgent("Opera/12.16"));
+        assertEquals("Chrome", parser.parseDevice("Chrome/40.0.2214.93").getFamily());
+        assertEquals(new OperatingSystem("First", "99", null, null, null), parser.parseOperatingSystem("Windows"));
+    }
+
+    private static final String MALFORMED_RULES = "user_agent_parsers:\n"
+                                                + "  - 'not a mapping'\n"
+                                                + "  - regex: [a, b]\n"
+                                                + "    family_replacement: 'Nested'\n"
+                                                + "  - regex: '(Chrome)/(\\d+)'\n";
+
+    @Test
+    public void shouldGatherMalformedEntriesWhenLenient() {
+        Parser parser = new Parser(new ByteArrayInputStream(MALFORMED_RULES.getBytes(StandardCharsets.UTF_8)), true);
+        assertEquals(2, parser.getUserAgentParser().getInvalidConfigurations().size());
+        Map<String,String> notAMapping = new HashMap<>();
+        notAMapping.put("index", "0");
+        notAMapping.put("value", "not a mapping");
+        assertEquals(notAMapping, parser.getUserAgentParser().getInvalidConfigurations().get(0));
+        assertEquals(Collections.singletonMap("family_replacement", "Nested"), parser.getUserAgentParser().getInvalidConfigurations().get(1));
+        assertEquals(new UserAgent("Chrome", "40", null, null), parser.parseUserAgent("Chrome/40.0.2214.93"));
+    }
+
+    @Test
+    public void shouldBreakOnMalformedEntries() {
+        expected.expect(Parser.InvalidParserDataException.class);
+        expected.expectMessage("Parser data contains an entry in 'user_agent_parsers' at index 0 that is not a mapping.");
+        new Parser(new ByteArrayInputStream(MALFORMED_RULES.getBytes(StandardCharsets.UTF_8)), false);
+    }
+
+    @Test
+    public void shouldTrackLatencyAndSlowestInputs() throws Exception {
+        Parser parser = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml")).withLatencyTracking(2);
+        String[] inputs = { "iTunes-AppleTV/4.1", "Chrome/40.0.2214.93", "Unknown", "iTunes-AppleTV/4.2" };
+        for (String input : inputs) {
+            parser.parseDevice(input);
+        }
+        LatencySnapshot snapshot = parser.getDeviceLatency();
+        assertEquals(4, snapshot.getCount());
+        assertTrue(snapshot.getMedianNanos() <= snapshot.get99thPercentileNanos());
+        assertTrue(snapshot.get99thPercentileNanos() <= snapshot.getMaxNanos());
+        assertEquals(2, snapshot.getSlowestInputs().size());
+        for (LatencySnapshot.SlowInput slowInput : snapshot.getSlowestInputs()) {
+            assertTrue(Arrays.asList(inputs).contains(slowInput.getInput()));
+            assertEquals(slowInput.getInput().startsWith("iTunes") ? "(AppleTV)" : null, slowInput.getRule());
+        }
+        assertNull(new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml")).getDeviceLatency());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("io.divolte.uaparser:type=Parser,name=latency");
+        server.registerMBean(parser, name);
+        try {
+            CompositeData attribute = (CompositeData) server.getAttribute(name, "DeviceLatency");
+            assertEquals(4L, attribute.get("count"));
+            server.invoke(name, "resetLatency", null, null);
+            assertEquals(0, parser.getDeviceLatency().getCount());
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void shouldTrackLatencyOfProjections() {
+        Parser parser = new Parser(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml")).withLatencyTracking(1, Duration.ofMinutes(5));
+        parser.parseOperatingSystem("Mac OS X 10_10_2", EnumSet.of(OperatingSystem.Field.OPERATING_SYSTEM));
+        assertEquals(1, parser.getOperatingSystemLatency().getCount());
+        assertEquals("Mac OS X 10_10_2", parser.getOperatingSystemLatency().getSlowestInputs().get(0).getInput());
+        assertNotNull(parser.update(ParserTest.class.getResourceAsStream("/minimal-regexes.yaml")).getOperatingSystemLatency());
+    }
+
+    private static InputStream userAgentRules(String... regexes) {
+        StringBuilder data = new StringBuilder("user_agent_parsers:\n");
+        for (String regex : regexes) {
+            data.append("  - regex: '").append(regex).append("'\n");
+        }
+        return new ByteArrayInputStream(data.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void shouldKeepOnlyUnaffectedCacheEntriesOnUpdate() {
+        Parser parser = new Parser(userAgentRules("(Chrome)/(\\d+)", "(Firefox)/(\\d+)"));
+        CachingParser cachingParser = new CachingParser(parser, 100);
+        cachingParser.parseUserAgent("Chrome/40");
+        cachingParser.parseUserAgent("Firefox/35");
+        cachingParser.parseUserAgent("Opera/12");
+        assertEquals(3, cachingParser.getFootprint().getCacheEntries());
+
+        Parser updatedParser = parser.update(userAgentRules("(Chrome)/(\\d+)", "(Opera)/(\\d+)", "(Firefox)/(\\d+)"));
+        assertSame(parser.getUserAgentParser().rules().get(0), updatedParser.getUserAgentParser().rules().get(0));
+        CachingParser updated = cachingParser.update(updatedParser);
+        // Only Chrome is retained: a new rule now precedes Firefox, and could match the unmatched input.
+        assertEquals(1, updated.getFootprint().getCacheEntries());
+        assertEquals(new UserAgent("Opera", "12", null, null), updated.parseUserAgent("Opera/12"));
+        assertEquals(new UserAgent("Chrome", "40", null, null), updated.parseUserAgent("Chrome/40"));
+    }
+
+    @Test
+    public void shouldKeepCacheEntriesWhenRulesAreRemoved() {
+        Parser parser = new Parser(userAgentRules("(Chrome)/(\\d+)", "(Opera)/(\\d+)", "(Firefox)/(\\d+)"));
+        CachingParser cachingParser = new CachingParser(parser, 100);
+        cachingParser.parseUserAgent("Chrome/40");
+        cachingParser.parseUserAgent("Firefox/35");
+        cachingParser.parseUserAgent("Safari/8");
+
+        CachingParser updated = cachingParser.update(parser.update(userAgentRules("(Chrome)/(\\d+)", "(Firefox)/(\\d+)")));
+        assertEquals(3, updated.getFootprint().getCacheEntries());
+        assertEquals(new UserAgent("Firefox", "35", null, null), updated.parseUserAgent("Firefox/35"));
+    }
+
     @Rule
     public ExpectedException expected = ExpectedException.none();
 
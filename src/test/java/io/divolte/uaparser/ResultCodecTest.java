@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ResultCodecTest {
+    private static final UserAgent USER_AGENT = new UserAgent("Chrome", "40", "0", "2214");
+    private static final Device DEVICE = new Device("AppleTV", "Apple", "AppleTV");
+    private static final OperatingSystem OPERATING_SYSTEM = new OperatingSystem("Mac OS X", "10", "10", "2", null);
+
+    private static byte[] write(boolean useDictionary, int repetitions) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResultWriter writer = new ResultWriter(out, useDictionary);
+        for (int i = 0; i < repetitions; i++) {
+            writer.write(USER_AGENT);
+            writer.write(DEVICE);
+            writer.write(OPERATING_SYSTEM);
+            writer.write(UserAgent.OTHER);
+            writer.write(Device.OTHER);
+        }
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    private static void assertRoundTrip(ByteBuffer buffer, int repetitions) {
+        ResultReader reader = new ResultReader(buffer);
+        for (int i = 0; i < repetitions; i++) {
+            assertEquals(UserAgent.class, reader.peekType());
+            assertEquals(USER_AGENT, reader.readUserAgent());
+            assertEquals(DEVICE, reader.readDevice());
+            assertEquals(OPERATING_SYSTEM, reader.readOperatingSystem());
+            assertEquals(UserAgent.OTHER, reader.readUserAgent());
+            assertEquals(Device.OTHER, reader.readDevice());
+        }
+        assertFalse(reader.hasNext());
+    }
+
+    @Test
+    public void shouldRoundTripWithoutDictionary() throws IOException {
+        assertRoundTrip(ByteBuffer.wrap(write(false, 3)), 3);
+    }
+
+    @Test
+    public void shouldRoundTripWithDictionary() throws IOException {
+        assertRoundTrip(ByteBuffer.wrap(write(true, 3)), 3);
+    }
+
+    @Test
+    public void shouldRoundTripThroughDirectBuffer() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        ResultWriter writer = new ResultWriter(buffer, true);
+        writer.write(USER_AGENT);
+        writer.write(DEVICE);
+        writer.write(OPERATING_SYSTEM);
+        writer.write(UserAgent.OTHER);
+        writer.write(Device.OTHER);
+        buffer.flip();
+        assertRoundTrip(buffer, 1);
+    }
+
+    @Test
+    public void shouldWriteRepeatedNamesAsReferences() throws IOException {
+        int once = write(true, 1).length;
+        int twice = write(true, 2).length;
+        assertTrue(twice - once < once);
+        assertTrue(write(true, 2).length < write(false, 2).length);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectUnexpectedRecordType() throws IOException {
+        new ResultReader(ByteBuffer.wrap(write(false, 1))).readDevice();
+    }
+
+    private static void assertMalformed(int... bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        for (int b : bytes) {
+            buffer.put((byte) b);
+        }
+        buffer.flip();
+        try {
+            new ResultReader(buffer).readUserAgent();
+            fail("Expected malformed data to be rejected.");
+        } catch (ResultReader.MalformedResultException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void shouldRejectCorruptInput() {
+        int magic = ResultWriter.MAGIC;
+        int userAgent = ResultWriter.TYPE_USER_AGENT;
+        // Bad header, and truncated header.
+        assertMalformed(0x00, 1, 0);
+        assertMalformed(magic, 1);
+        // Dictionary reference in a version field.
+        assertMalformed(magic, 1, 1, userAgent, 0, 1, 0, 0);
+        // Dictionary reference out of range, and without a dictionary.
+        assertMalformed(magic, 1, 1, userAgent, 5, 0, 0, 0);
+        assertMalformed(magic, 1, 0, userAgent, 1, 0, 0, 0);
+        // String longer than the remaining data.
+        assertMalformed(magic, 1, 0, userAgent, 20, 'a', 'b');
+        // Truncated record.
+        assertMalformed(magic, 1, 0, userAgent, 0);
+        // Varint that does not terminate.
+        assertMalformed(magic, 1, 0, userAgent, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF);
+    }
+}
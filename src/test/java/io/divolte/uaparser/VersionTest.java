@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.uaparser;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class VersionTest {
+
+    @Test
+    public void shouldCompareNumerically() {
+        Version version = new UserAgent("Chrome", "40", "0", "2214").getVersion();
+        assertTrue(version.isAtLeast(9));
+        assertTrue(version.isAtLeast(40, 0, 2214));
+        assertFalse(version.isAtLeast(40, 1));
+        assertTrue(version.isBefore(100));
+        assertTrue(version.compareTo(Version.of("40", "0", "999")) > 0);
+        assertTrue(version.isInRange(Version.of("40"), Version.of("41")));
+    }
+
+    @Test
+    public void shouldTreatAbsentAndNonNumericComponentsAsZero() {
+        assertEquals(Version.of("14"), Version.of("14", "0"));
+        assertEquals(Version.of("3", "0"), Version.of("3", "b4"));
+        assertTrue(Version.EMPTY.isBefore(0, 0, 1));
+    }
+
+    @Test
+    public void shouldKeepComponentsInPlaceWhenMajorIsMissing() {
+        UserAgent agent = new UserAgent("X", null, "5", null);
+        Version version = agent.getVersion();
+        assertEquals(0, version.getMajor());
+        assertEquals(5, version.getMinor());
+        assertFalse(version.isAtLeast(5));
+        assertEquals(2, version.length());
+        assertEquals("5", agent.makeVersionString());
+        assertEquals(Version.of("0", "5"), version);
+    }
+
+    @Test
+    public void shouldKeepOriginalVersionString() {
+        OperatingSystem os = new OperatingSystem("Mac OS X", "10", "10", "2b", null);
+        assertEquals("10.10.2b", os.makeVersionString());
+        assertSame(os.getVersion(), os.getVersion());
+        assertEquals("", UserAgent.OTHER.makeVersionString());
+    }
+}